@@ -1,8 +1,17 @@
 package tracks.ruleGeneration.brkdncr94;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import core.game.GameDescription.SpriteData;
 import core.game.SLDescription;
@@ -19,99 +28,298 @@ import tools.LevelAnalyzer;
 
 public class RuleGenerator extends AbstractRuleGenerator{
 	/**
-	 * a Level Analyzer object used to analyze the game sprites
+	 * The interaction phases of the generator in the order their interactions are merged.
+	 * Each phase lists the phases it depends on: the ones that fill the shared lists
+	 * (harmfulObjects, collectible, harmfulNPCs, fleeingNPCs) it reads or appends to.
+	 * Phases that only read the analysis arrays have no dependencies.
+	 * The phases others depend on form a chain that is run on the calling thread,
+	 * only the phases nothing depends on are worth running concurrently.
 	 */
-	private LevelAnalyzer la;
+	private enum Phase {
+		RESOURCE(),
+		IMMOVABLE(),
+		NPC(IMMOVABLE),
+		SPAWNER(NPC),
+		PORTAL(),
+		MOVABLE(SPAWNER),
+		WALL(NPC),
+		AVATAR(MOVABLE);
 
-	/**
-	 *  array of different interactions that movable objects (contains also NPCs) can do when hitting the walls
-	 */
-	private String[] movableWallInteraction = new String[]{"stepBack", "flipDirection", "reverseDirection",
-			"turnAround", "wrapAround"};
+		private final Phase[] dependencies;
 
-	/**
-	 * percentages used to decide
-	 */
-	private double doorCollectibleProb = 0.5;
-	private double killIfHasLessProb = 0.2;
-	private double killResourceProb = 0.5;
-	private double killResourceScoreProb = 0.3;
-	private double destroyWallProb = 0.4;
-	private double wallPercentageProb = 0.5;
-	private double spikeProb = 0.5;
-	private double doubleNPCsProb = 0.5;
-	private double harmfulMovableProb = 0.3;
-	private double usefulMovableProb = 0.7;
-	private double firewallProb = 0.05;
-	private double scoreSpikeProb = 0.1;
-	private double randomNPCProb = 0.5;
-	private double spawnedProb = 0.5;
-	private double bomberProb = 0.5;
+		/**
+		 * the phases at least one other phase depends on
+		 */
+		private static final EnumSet<Phase> required = EnumSet.noneOf(Phase.class);
+		static {
+			for(Phase phase : values()){
+				required.addAll(Arrays.asList(phase.dependencies));
+			}
+		}
+
+		Phase(Phase... dependencies){
+			this.dependencies = dependencies;
+		}
+	}
 
 	/**
-	 * a list of suggested interactions for the generated game
-	 */
-	private ArrayList<String> interactions;
-	/**
-	 * a list of suggested termination conditions for the generated game
+	 * shared pool used to run the phases nothing depends on next to the calling thread,
+	 * its threads never keep the JVM alive
 	 */
-	private ArrayList<String> terminations;
+	private static final ExecutorService phaseExecutor = Executors.newFixedThreadPool(
+			Math.max(1, Math.min(Phase.values().length, Runtime.getRuntime().availableProcessors())),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "RuleGenerator-phase");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 
 	/**
-	 * the sprite that the generator think is a wall sprite
+	 * the game and level description the analysis is computed from
 	 */
-	private SpriteData wall;
+	private final SLDescription sl;
+
 	/**
-	 * array of all door sprites
+	 * All the state of a single generateRules call, so one analyzed generator can serve
+	 * concurrent calls and every call starts from empty lists
 	 */
-	private ArrayList<SpriteData> exit;
+	private static class GenerationContext {
+		/**
+		 * a list of suggested interactions for the generated game
+		 */
+		private ArrayList<String> interactions = new ArrayList<String>();
+		/**
+		 * a list of suggested termination conditions for the generated game
+		 */
+		private ArrayList<String> terminations = new ArrayList<String>();
+
+		/**
+		 * array of all collectible sprites
+		 */
+		private ArrayList<String> collectible = new ArrayList<String>();
+		/**
+		 * set of all collectible sprites for constant time lookups
+		 */
+		private HashSet<String> collectibleSet = new HashSet<String>();
+
+		/**
+		 * Array of all different types of harmful objects (can kill the player)
+		 */
+		private ArrayList<String> harmfulObjects = new ArrayList<String>();
+		/**
+		 * set of all harmful objects for constant time lookups
+		 */
+		private HashSet<String> harmfulObjectSet = new HashSet<String>();
+
+		/**
+		 * Array of harmful NPCs (can attack and kill the player)
+		 */
+		private ArrayList<String> harmfulNPCs = new ArrayList<String>();
+
+		/**
+		 * Array of all different types of fleeing NPCs
+		 */
+		private ArrayList<String> fleeingNPCs = new ArrayList<String>();
+
+		private String criticalEnemyNPC;
+		private String criticalCollectible;
+		private String npcToCatch;
+
+		/**
+		 * the level analysis the call reads the sprites from
+		 */
+		private final LevelAnalysis analysis;
+
+		/**
+		 * random object of this call
+		 */
+		private Random random;
+
+		private GenerationContext(LevelAnalysis analysis, Random random){
+			this.analysis = analysis;
+			this.random = random;
+		}
+
+		/**
+		 * add a sprite to the harmful objects
+		 * @param spriteName	the input sprite name
+		 */
+		private void addHarmfulObject(String spriteName){
+			harmfulObjects.add(spriteName);
+			harmfulObjectSet.add(spriteName);
+		}
+
+		/**
+		 * add a sprite to the collectibles
+		 * @param spriteName	the input sprite name
+		 */
+		private void addCollectible(String spriteName){
+			collectible.add(spriteName);
+			collectibleSet.add(spriteName);
+		}
+	}
+
 	/**
-	 * array of all collectible sprites
+	 * The sprite categories of the game and level the phases read. It is built once and never
+	 * changed afterwards, the analyzer included which is only queried for object counts,
+	 * so concurrent calls read it without locking.
 	 */
-	private ArrayList<String> collectible;
+	private class LevelAnalysis {
+		/**
+		 * a Level Analyzer object used to analyze the game sprites
+		 */
+		private final LevelAnalyzer la;
+
+		// SpriteData arrays to be used to form interactions
+		private final SpriteData[] avatar;
+		private final SpriteData[] usefulAvatar;
+		private final SpriteData[] resources;
+		private final SpriteData[] movables;
+		private final SpriteData[] NPCs;
+		private final SpriteData[] spawners;
+		private final SpriteData[] immovables;
+		private final SpriteData[] portals;
+
+		/**
+		 * names of the sprites spawned by the spawners that appear in the level
+		 */
+		private final HashSet<String> inMapSpawned;
+		/**
+		 * the sprite that the generator think is a wall sprite
+		 */
+		private final SpriteData wall;
+		/**
+		 * array of all door sprites
+		 */
+		private final ArrayList<SpriteData> exit;
+		/**
+		 * a certain unmovable object that is used as a collectible object
+		 */
+		private final SpriteData score;
+		/**
+		 * a certain unmovable object that is used as a spike object
+		 */
+		private final SpriteData spike;
+
+		private LevelAnalysis(){
+			la = new LevelAnalyzer(sl);
+			avatar = la.getAvatars(false);
+			usefulAvatar = la.getAvatars(true);
+			resources = la.getResources(true);
+			movables = la.getMovables(false);
+			NPCs = la.getNPCs(false);
+			spawners = la.getSpawners(false);
+			immovables = la.getImmovables(1, (int)(scoreSpikeProb * la.getArea()));
+			portals = la.getPortals(true);
+
+			//a game without spawner types can't have any in the level
+			inMapSpawned = getSpawnedSprites(spawners.length == 0 ? spawners : la.getSpawners(true));
+
+			//Identify the wall object
+			SpriteData wall = null;
+			SpriteData[] temp = la.getBorderObjects((1.0 * la.getPerimeter()) / la.getArea(), wallPercentageProb);
+			if(temp.length > 0){
+				wall = temp[0];
+				for(int i=0; i<temp.length; i++){
+					if(la.getNumberOfObjects(temp[i].name) < la.getNumberOfObjects(wall.name)){
+						wall = temp[i];
+					}
+				}
+			}
+			this.wall = wall;
+
+			//identify the exit sprite
+			exit = new ArrayList<SpriteData>();
+			for(int i=0; i<portals.length; i++){
+				if(!portals[i].type.equalsIgnoreCase("portal")){
+					exit.add(portals[i]);
+				}
+			}
+
+			//identify the score and spike sprites
+			Random random = new Random(scoreSpikeSeed);
+			SpriteData score = null;
+			SpriteData spike = null;
+			if (immovables.length > 0) {
+				if (wall == null) {
+					score = immovables[random.nextInt(immovables.length)];
+					spike = immovables[random.nextInt(immovables.length)];
+				}
+				else {
+					//the sprites on the wall tile are only looked up when there are candidates to weigh
+					SpriteData[] relatedSprites = la.getSpritesOnSameTile(wall.name);
+					//count the related sprites by name instead of comparing every pair
+					HashMap<String, Integer> relatedCount = new HashMap<String, Integer>();
+					for (int j = 0; j < relatedSprites.length; j++) {
+						Integer count = relatedCount.get(relatedSprites[j].name);
+						relatedCount.put(relatedSprites[j].name, count == null ? 1 : count + 1);
+					}
+					//each immovable is weighted by the number of related sprites with a different name
+					int[] cumulative = new int[immovables.length];
+					int total = 0;
+					for (int i = 0; i < immovables.length; i++) {
+						Integer count = relatedCount.get(immovables[i].name);
+						total += relatedSprites.length == 0 ? 1 : relatedSprites.length - (count == null ? 0 : count);
+						cumulative[i] = total;
+					}
+					score = pickWeighted(immovables, cumulative, random.nextInt(total));
+					spike = pickWeighted(immovables, cumulative, random.nextInt(total));
+				}
+			}
+			this.score = score;
+			this.spike = spike;
+		}
+	}
+
 	/**
-	 * a certain unmovable object that is used as a collectible object
+	 *  array of different interactions that movable objects (contains also NPCs) can do when hitting the walls
 	 */
-	private SpriteData score;
+	private final String[] movableWallInteraction = new String[]{"stepBack", "flipDirection", "reverseDirection",
+			"turnAround", "wrapAround"};
+
 	/**
-	 * a certain unmovable object that is used as a spike object
+	 * percentages used to decide
 	 */
-	private SpriteData spike;
+	private final double doorCollectibleProb = 0.5;
+	private final double killIfHasLessProb = 0.2;
+	private final double killResourceProb = 0.5;
+	private final double killResourceScoreProb = 0.3;
+	private final double destroyWallProb = 0.4;
+	private final double wallPercentageProb = 0.5;
+	private final double spikeProb = 0.5;
+	private final double doubleNPCsProb = 0.5;
+	private final double harmfulMovableProb = 0.3;
+	private final double usefulMovableProb = 0.7;
+	private final double firewallProb = 0.05;
+	private final double scoreSpikeProb = 0.1;
+	private final double randomNPCProb = 0.5;
+	private final double spawnedProb = 0.5;
+	private final double bomberProb = 0.5;
+
 
 	/**
-	 * random object used in generating different games
+	 * seed of the random object used to pick the score and spike sprites, drawn in the
+	 * constructor so the pick doesn't depend on when the analysis is done
 	 */
-	private Random random;
+	private final long scoreSpikeSeed;
 
 	/**
-	 * Array of all different types of harmful objects (can kill the player)
+	 * random object used in generating different games, only used to seed the random object of each call
 	 */
-	private ArrayList<String> harmfulObjects;
-	
+	private final Random random;
+
 	/**
-	 * Array of harmful NPCs (can attack and kill the player)
+	 * the sprite set structure of the last call of generateRules on each thread, read by getSpriteSetStructure
 	 */
-	private ArrayList<String> harmfulNPCs;
-	
+	private final ThreadLocal<HashMap<String, ArrayList<String>>> lastStructure = new ThreadLocal<HashMap<String, ArrayList<String>>>();
+
 	/**
-	 * Array of all different types of fleeing NPCs
+	 * the analysis of the game and level, done by the first call of generateRules
 	 */
-	private ArrayList<String> fleeingNPCs;
-	
-	
-	// SpriteData arrays to be used to form interactions
-	private SpriteData[] avatar;
-	private SpriteData[] resources;
-	private SpriteData[] movables;
-	private SpriteData[] NPCs;
-	private SpriteData[] spawners;
-	private SpriteData[] immovables;
-	private SpriteData[] portals;
-	
-	private String criticalEnemyNPC;
-	private String criticalCollectible;
-	private String npcToCatch;
-	
+	private volatile LevelAnalysis analysis;
 
 	/**
 	 * Constructor that initialize the constructive algorithm
@@ -120,84 +328,81 @@ public class RuleGenerator extends AbstractRuleGenerator{
 	 * @param time	the amount of time allowed for initialization
 	 */
 	public RuleGenerator(SLDescription sl, ElapsedCpuTimer time){
-		//Initialize everything
-		la = new LevelAnalyzer(sl);
-		avatar = la.getAvatars(false);
-		resources = la.getResources(true);
-		movables = la.getMovables(false);
-		NPCs = la.getNPCs(false);
-		spawners = la.getSpawners(false);
-		immovables = la.getImmovables(1, (int)(scoreSpikeProb * la.getArea()));
-		portals = la.getPortals(true);
-		
-		
-		
-		interactions = new ArrayList<String>();
-		terminations = new ArrayList<String>();
+		this(sl, time, new Random());
+	}
 
-		random = new Random();
-		harmfulObjects = new ArrayList<String>();
-		harmfulNPCs = new ArrayList<String>();
-		fleeingNPCs = new ArrayList<String>();
-		collectible = new ArrayList<String>();
+	/**
+	 * Constructor that initialize the constructive algorithm with a fixed seed
+	 * so the same game and level always generate the same rules
+	 * @param sl	SLDescription object contains information about the
+	 * 			current game and level
+	 * @param time	the amount of time allowed for initialization
+	 * @param seed	the seed of the random object
+	 */
+	public RuleGenerator(SLDescription sl, ElapsedCpuTimer time, long seed){
+		this(sl, time, new Random(seed));
+	}
 
-		//Identify the wall object
-		wall = null;
-		SpriteData[] temp = la.getBorderObjects((1.0 * la.getPerimeter()) / la.getArea(), this.wallPercentageProb);
-		if(temp.length > 0){
-			wall = temp[0];
-			for(int i=0; i<temp.length; i++){
-				if(la.getNumberOfObjects(temp[i].name) < la.getNumberOfObjects(wall.name)){
-					wall = temp[i];
-				}
-			}
-		}
+	/**
+	 * Constructor that initialize the constructive algorithm
+	 * @param sl		SLDescription object contains information about the
+	 * 			current game and level
+	 * @param time		the amount of time allowed for initialization
+	 * @param random	random object used in generating different games
+	 */
+	private RuleGenerator(SLDescription sl, ElapsedCpuTimer time, Random random){
+		//Initialize everything, the level analysis is done by the first call of generateRules
+		this.sl = sl;
+		this.random = random;
+		scoreSpikeSeed = random.nextLong();
+	}
 
-		//identify the exit sprite
-		exit = new ArrayList<SpriteData>();
-		for(int i=0; i<portals.length; i++){
-			if(!portals[i].type.equalsIgnoreCase("portal")){
-				exit.add(portals[i]);
+	/**
+	 * @return	the analysis of the game and level, done the first time it is needed
+	 */
+	private LevelAnalysis getAnalysis(){
+		LevelAnalysis result = analysis;
+		if(result == null){
+			synchronized(this){
+				result = analysis;
+				if(result == null){
+					result = new LevelAnalysis();
+					analysis = result;
+				}
 			}
 		}
+		return result;
+	}
 
-		//identify the score and spike sprites
-		ArrayList<SpriteData> tempList = new ArrayList<SpriteData>();
-		score = null;
-		spike = null;
-		temp = la.getImmovables(1, (int)(scoreSpikeProb * la.getArea()));
-		if (immovables.length > 0) {
-			if (wall == null) {
-				score = immovables[random.nextInt(immovables.length)];
-				spike = immovables[random.nextInt(immovables.length)];
+	/**
+	 * pick a sprite from a weighted list without building the list
+	 * @param sprites		the input sprites
+	 * @param cumulative	the cumulative weights of the sprites
+	 * @param position		position in the weighted list, between 0 and the total weight
+	 * @return				the sprite at that position
+	 */
+	private static SpriteData pickWeighted(SpriteData[] sprites, int[] cumulative, int position){
+		int low = 0;
+		int high = cumulative.length - 1;
+		while(low < high){
+			int middle = (low + high) / 2;
+			if(cumulative[middle] > position){
+				high = middle;
 			}
-			else {
-				tempList = new ArrayList<SpriteData>();
-				SpriteData[] relatedSprites = la.getSpritesOnSameTile(wall.name);
-				for (int i = 0; i < temp.length; i++) {
-					for (int j = 0; j < relatedSprites.length; j++) {
-						if (!temp[i].name.equals(relatedSprites[j].name)) {
-							tempList.add(temp[i]);
-						}
-					}
-					if(relatedSprites.length == 0){
-						tempList.add(temp[i]);
-					}
-				}
-
-				score = tempList.get(random.nextInt(tempList.size()));
-				spike = tempList.get(random.nextInt(tempList.size()));
+			else{
+				low = middle + 1;
 			}
 		}
+		return sprites[low];
 	}
 
 	/**
 	 * Check if this spritename is the avatar
+	 * @param avatar		all avatar sprites
 	 * @param spriteName	the input sprite name
 	 * @return			true if its the avatar or false otherwise
 	 */
-	private boolean isAvatar(String spriteName){
-		SpriteData[] avatar = la.getAvatars(false);
+	private boolean isAvatar(SpriteData[] avatar, String spriteName){
 		for(int i=0; i<avatar.length; i++){
 			if(avatar[i].equals(spriteName)){
 				return true;
@@ -206,12 +411,34 @@ public class RuleGenerator extends AbstractRuleGenerator{
 		return false;
 	}
 
+	/**
+	 * get the names of all sprites spawned by the input sprites
+	 * @param sprites	the input sprites
+	 * @return			set of the names of the spawned sprites
+	 */
+	private HashSet<String> getSpawnedSprites(SpriteData[] sprites){
+		HashSet<String> spawned = new HashSet<String>();
+		for(int i=0; i<sprites.length; i++){
+			spawned.addAll(sprites[i].sprites);
+		}
+		return spawned;
+	}
+
 	/**
 	 * get the interactions of everything with wall sprites
+	 * @param ctx			the context of the current call
+	 * @param interactions	the buffer this phase adds its interactions to
+	 * @param random		the random object of this phase
 	 */
-	private void getWallInteractions(){
+	private void getWallInteractions(GenerationContext ctx, ArrayList<String> interactions, Random random){
+		SpriteData[] avatar = ctx.analysis.avatar;
+		SpriteData[] resources = ctx.analysis.resources;
+		SpriteData[] movables = ctx.analysis.movables;
+		SpriteData[] NPCs = ctx.analysis.NPCs;
+		SpriteData wall = ctx.analysis.wall;
+
 		//Do walls act like fire (harmful for the avatar)?
-		boolean avatarFireWall = this.random.nextDouble() < firewallProb &&
+		boolean avatarFireWall = random.nextDouble() < firewallProb &&
 				wall != null;
 		
 		String criticalResource = "";
@@ -231,7 +458,7 @@ public class RuleGenerator extends AbstractRuleGenerator{
 				action = "killSprite";
 			}
 			else if(!criticalResource.equals("")) {
-				int limit = (int) (la.getNumberOfObjects(criticalResource)/2) + 1;
+				int limit = (int) (ctx.analysis.la.getNumberOfObjects(criticalResource)/2) + 1;
 				action = "killIfHasLess resource=" + criticalResource + " limit=" + limit;
 			}
 		}
@@ -257,8 +484,8 @@ public class RuleGenerator extends AbstractRuleGenerator{
 			
 
 		//Get the interaction between all movable objects (including npcs) with wall or EOS
-		boolean npcFireWall = this.random.nextDouble() < firewallProb &&
-				wall != null && fleeingNPCs.size() == 0;
+		boolean npcFireWall = random.nextDouble() < firewallProb &&
+				wall != null && ctx.fleeingNPCs.size() == 0;
 		
 		action = movableWallInteraction[random.nextInt(movableWallInteraction.length)];		
 		if(npcFireWall){
@@ -298,8 +525,12 @@ public class RuleGenerator extends AbstractRuleGenerator{
 
 	/**
 	 * get the interactions of all sprites with resource sprites
+	 * @param ctx			the context of the current call
+	 * @param interactions	the buffer this phase adds its interactions to
 	 */
-	private void getResourceInteractions(){
+	private void getResourceInteractions(GenerationContext ctx, ArrayList<String> interactions){
+		SpriteData[] avatar = ctx.analysis.avatar;
+		SpriteData[] resources = ctx.analysis.resources;
 
 		//make the avatar collect the resources
 		for(int i=0; i<avatar.length; i++){
@@ -311,15 +542,21 @@ public class RuleGenerator extends AbstractRuleGenerator{
 
 	/**
 	 * get the interactions of all sprites with spawner sprites
+	 * @param ctx			the context of the current call
+	 * @param interactions	the buffer this phase adds its interactions to
+	 * @param random		the random object of this phase
 	 */
-	private void getSpawnerInteractions(){
+	private void getSpawnerInteractions(GenerationContext ctx, ArrayList<String> interactions, Random random){
+		SpriteData[] avatar = ctx.analysis.avatar;
+		SpriteData[] resources = ctx.analysis.resources;
+		SpriteData[] spawners = ctx.analysis.spawners;
 
 		//make the spawned object harmful to the avatar with a chance to be useful
 		if(random.nextDouble() < spawnedProb){
 			for (int i = 0; i < avatar.length; i++) {
 				for (int j = 0; j < spawners.length; j++) {
 					for (int k = 0; k < spawners[j].sprites.size(); k++) {
-						harmfulObjects.add(spawners[j].sprites.get(k));
+						ctx.addHarmfulObject(spawners[j].sprites.get(k));
 						interactions.add(avatar[i].name + " " + spawners[j].sprites.get(k) + " > killSprite");					
 					}
 				}
@@ -329,8 +566,8 @@ public class RuleGenerator extends AbstractRuleGenerator{
 			for (int i = 0; i < avatar.length; i++) {
 				for (int j = 0; j < spawners.length; j++) {
 					for (int k = 0; k < spawners[j].sprites.size(); k++) {
-					    if(!harmfulObjects.contains(spawners[j].sprites.get(k))){
-						collectible.add(spawners[j].sprites.get(k));
+					    if(!ctx.harmfulObjectSet.contains(spawners[j].sprites.get(k))){
+						ctx.addCollectible(spawners[j].sprites.get(k));
 						interactions.add(spawners[j].sprites.get(k) + " " + avatar[i].name + " > killSprite scoreChange=1");
 					    }
 					}
@@ -350,8 +587,8 @@ public class RuleGenerator extends AbstractRuleGenerator{
 		
 		for (int j = 0; j < spawners.length; j++) {
 		    for (int k = 0; k < spawners[j].sprites.size(); k++) {
-		    	if(harmfulObjects.contains(spawners[j].sprites.get(k))){
-		    		harmfulObjects.add(spawners[j].name);
+		    	if(ctx.harmfulObjectSet.contains(spawners[j].sprites.get(k))){
+		    		ctx.addHarmfulObject(spawners[j].name);
 		    		break;
 		    	}
 		    }
@@ -359,8 +596,8 @@ public class RuleGenerator extends AbstractRuleGenerator{
 		
 		for (int j = 0; j < spawners.length; j++) {
 		    for (int k = 0; k < spawners[j].sprites.size(); k++) {
-		    	if(collectible.contains(spawners[j].sprites.get(k))){
-		    		collectible.add(spawners[j].name);
+		    	if(ctx.collectibleSet.contains(spawners[j].sprites.get(k))){
+		    		ctx.addCollectible(spawners[j].name);
 		    		break;
 		    	}
 		    }
@@ -369,13 +606,19 @@ public class RuleGenerator extends AbstractRuleGenerator{
 
 	/**
 	 * get the interactions of all sprites with immovable sprites
+	 * @param ctx			the context of the current call
+	 * @param interactions	the buffer this phase adds its interactions to
+	 * @param random		the random object of this phase
 	 */
-	private void getImmovableInteractions(){
+	private void getImmovableInteractions(GenerationContext ctx, ArrayList<String> interactions, Random random){
+		SpriteData[] avatar = ctx.analysis.avatar;
+		SpriteData score = ctx.analysis.score;
+		SpriteData spike = ctx.analysis.spike;
 
 		//If we have a score object make the avatar can collect it
 		if(score != null){
 			for(int i=0; i<avatar.length; i++){
-				collectible.add(score.name);
+				ctx.addCollectible(score.name);
 				interactions.add(score.name + " " + avatar[i].name + " > killSprite scoreChange=1");
 			}
 		}
@@ -383,14 +626,14 @@ public class RuleGenerator extends AbstractRuleGenerator{
 		//If we have a spike object make it kill the avatar with a change to be a super collectible sprite
 		if (spike != null && !spike.name.equalsIgnoreCase(score.name)) {
 			if (random.nextDouble() < spikeProb) {
-				harmfulObjects.add(spike.name);
+				ctx.addHarmfulObject(spike.name);
 				for (int i = 0; i < avatar.length; i++) {
 					interactions.add(avatar[i].name + " " + spike.name + " > killSprite");
 				}
 			}
 			else {
 				for (int i = 0; i < avatar.length; i++) {
-					collectible.add(spike.name);
+					ctx.addCollectible(spike.name);
 					interactions.add(spike.name + " " + avatar[i].name + " > killSprite scoreChange=2");
 				}
 			}
@@ -399,107 +642,99 @@ public class RuleGenerator extends AbstractRuleGenerator{
 
 	/**
 	 * get the interactions of all sprites with avatar sprites
+	 * @param ctx			the context of the current call
+	 * @param interactions	the buffer this phase adds its interactions to
+	 * @param random		the random object of this phase
 	 */
-	private void getAvatarInteractions(){
+	private void getAvatarInteractions(GenerationContext ctx, ArrayList<String> interactions, Random random){
+		SpriteData[] avatar = ctx.analysis.avatar;
+		SpriteData[] resources = ctx.analysis.resources;
+		HashSet<String> inMapSpawned = ctx.analysis.inMapSpawned;
 
 		//Kill the avatar bullet, kill any harmful objects
 		
-		if(harmfulNPCs.size() > 0) {
+		if(ctx.harmfulNPCs.size() > 0) {
 			boolean foundCritical = false;
 			int counter = 100; // loop should terminate after a while if we can't find a suitable NPC
 			int rnd;
-			SpriteData[] inMapSpawners = la.getSpawners(true);
 			
 			while(!foundCritical) {
 				
-				rnd = random.nextInt(harmfulNPCs.size()); // designate one random NPC as critical to use as a win condition
-				criticalEnemyNPC = harmfulNPCs.get(rnd);
+				rnd = random.nextInt(ctx.harmfulNPCs.size()); // designate one random NPC as critical to use as a win condition
+				ctx.criticalEnemyNPC = ctx.harmfulNPCs.get(rnd);
 				
-				if(la.getNumberOfObjects(criticalEnemyNPC) > 0) {
+				if(ctx.analysis.la.getNumberOfObjects(ctx.criticalEnemyNPC) > 0) {
 					foundCritical = true;
 				}
-				else {
-					for(int i=0; i<inMapSpawners.length; i++) {
-						for(int j=0; j<inMapSpawners[i].sprites.size(); j++) {
-							if(inMapSpawners[i].sprites.get(j).equals(criticalEnemyNPC)) {
-								foundCritical = true;
-							}
-						}
-					}
+				else if(inMapSpawned.contains(ctx.criticalEnemyNPC)) {
+					foundCritical = true;
 				}
 				counter = counter - 1;
 				if(counter == 0) {
 					foundCritical = true;
-					criticalEnemyNPC = null;
+					ctx.criticalEnemyNPC = null;
 				}				
 			}			
 		}
 		
-		if(fleeingNPCs.size() > 0) { // identify a fleeing NPC to catch for a winning condition
+		if(ctx.fleeingNPCs.size() > 0) { // identify a fleeing NPC to catch for a winning condition
 			boolean foundFleeing = false;
 			int counter = 100; // loop should terminate after a while if we can't find a suitable NPC
 			int rnd;
-			SpriteData[] inMapSpawners = la.getSpawners(true);
 			
 			while(!foundFleeing) {
 				
-				rnd = random.nextInt(fleeingNPCs.size()); // designate one random NPC as critical to use as a win condition
-				npcToCatch = fleeingNPCs.get(rnd);
+				rnd = random.nextInt(ctx.fleeingNPCs.size()); // designate one random NPC as critical to use as a win condition
+				ctx.npcToCatch = ctx.fleeingNPCs.get(rnd);
 				
-				if(la.getNumberOfObjects(npcToCatch) > 0) {
+				if(ctx.analysis.la.getNumberOfObjects(ctx.npcToCatch) > 0) {
 					foundFleeing = true;
 				}
-				else {
-					for(int i=0; i<inMapSpawners.length; i++) {
-						for(int j=0; j<inMapSpawners[i].sprites.size(); j++) {
-							if(inMapSpawners[i].sprites.get(j).equals(npcToCatch)) {
-								foundFleeing = true;
-							}
-						}
-					}
+				else if(inMapSpawned.contains(ctx.npcToCatch)) {
+					foundFleeing = true;
 				}
 				counter = counter - 1;
 				if(counter == 0) {
 					foundFleeing = true;
-					npcToCatch = null;
+					ctx.npcToCatch = null;
 				}				
 			}			
 		}
 		
-		if(collectible.size() > 0){
+		if(ctx.collectible.size() > 0){
 			int rnd = 0;
 			int counter = 100;
 			boolean collectibleFound = false;
 			
 			while(!collectibleFound) {
-				rnd = random.nextInt(collectible.size()); // choose one random critical collectible to use as a win condition
-				if(la.getNumberOfObjects(collectible.get(rnd)) > 0) {
-					criticalCollectible = collectible.get(rnd);
+				rnd = random.nextInt(ctx.collectible.size()); // choose one random critical collectible to use as a win condition
+				if(ctx.analysis.la.getNumberOfObjects(ctx.collectible.get(rnd)) > 0) {
+					ctx.criticalCollectible = ctx.collectible.get(rnd);
 					collectibleFound = true;
 				}
 				counter = counter - 1;
 				if(counter == 0) {
 					collectibleFound = true;
-					criticalCollectible = null;
+					ctx.criticalCollectible = null;
 				}
 			}
 		}
 		
 		for(int i=0; i<avatar.length; i++){
 			for (int j = 0; j < avatar[i].sprites.size(); j++) { // kill harmful objects
-				for (int k = 0; k < harmfulObjects.size(); k++) {
-					interactions.add(harmfulObjects.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=1");
-					interactions.add(avatar[i].sprites.get(j) + " " + harmfulObjects.get(k) + " > killSprite");
+				for (int k = 0; k < ctx.harmfulObjects.size(); k++) {
+					interactions.add(ctx.harmfulObjects.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=1");
+					interactions.add(avatar[i].sprites.get(j) + " " + ctx.harmfulObjects.get(k) + " > killSprite");
 				}
 				
-				for (int k = 0; k < harmfulNPCs.size(); k++) {
-					if(harmfulNPCs.get(k).equals(criticalEnemyNPC)) {
-						interactions.add(harmfulNPCs.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=2");
+				for (int k = 0; k < ctx.harmfulNPCs.size(); k++) {
+					if(ctx.harmfulNPCs.get(k).equals(ctx.criticalEnemyNPC)) {
+						interactions.add(ctx.harmfulNPCs.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=2");
 					}
 					else {
-						interactions.add(harmfulNPCs.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=1");
+						interactions.add(ctx.harmfulNPCs.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=1");
 					}					
-					interactions.add(avatar[i].sprites.get(j) + " " + harmfulNPCs.get(k) + " > killSprite");
+					interactions.add(avatar[i].sprites.get(j) + " " + ctx.harmfulNPCs.get(k) + " > killSprite");
 				}
 				
 				if(random.nextDouble() < killResourceProb){ // with a probability, can kill resource objects
@@ -518,14 +753,14 @@ public class RuleGenerator extends AbstractRuleGenerator{
 				// with a probability can kill collectibles
 				if(random.nextDouble() < 0){
 				//if(random.nextDouble() < killResourceProb){
-					for (int k = 0; k < collectible.size(); k++) {
-						interactions.add(avatar[i].sprites.get(j) + " " + collectible.get(k) + " > killSprite");
+					for (int k = 0; k < ctx.collectible.size(); k++) {
+						interactions.add(avatar[i].sprites.get(j) + " " + ctx.collectible.get(k) + " > killSprite");
 						
 						if(random.nextDouble() < killResourceScoreProb) { // with some probability, destroying the collectible increases score
-							interactions.add(collectible.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=1");
+							interactions.add(ctx.collectible.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=1");
 						}
 						else { // else, destroying the collectible doesn't do the player any good
-							interactions.add(collectible.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=-1");
+							interactions.add(ctx.collectible.get(k) + " " + avatar[i].sprites.get(j) + " > killSprite scoreChange=-1");
 						}	
 					}
 				}
@@ -537,8 +772,13 @@ public class RuleGenerator extends AbstractRuleGenerator{
 
 	/**
 	 * get the interactions of all sprites with portal sprites
+	 * @param ctx			the context of the current call
+	 * @param interactions	the buffer this phase adds its interactions to
 	 */
-	private void getPortalInteractions() {
+	private void getPortalInteractions(GenerationContext ctx, ArrayList<String> interactions) {
+		SpriteData[] avatar = ctx.analysis.avatar;
+		SpriteData[] portals = ctx.analysis.portals;
+		ArrayList<SpriteData> exit = ctx.analysis.exit;
 
 		SpriteData door = null;
 		//make the exits die with collision of the player (going through them)
@@ -563,14 +803,19 @@ public class RuleGenerator extends AbstractRuleGenerator{
 
 	/**
 	 * get the interactions of all sprites with npc sprites
+	 * @param ctx			the context of the current call
+	 * @param interactions	the buffer this phase adds its interactions to
+	 * @param random		the random object of this phase
 	 */
-	private void getNPCInteractions(){
+	private void getNPCInteractions(GenerationContext ctx, ArrayList<String> interactions, Random random){
+		SpriteData[] avatar = ctx.analysis.avatar;
+		SpriteData[] NPCs = ctx.analysis.NPCs;
 
 		for(int i=0; i<NPCs.length; i++){
 			//If its fleeing object make it useful
 			if (NPCs[i].type.equalsIgnoreCase("fleeing")) {
 				for(int j=0; j<NPCs[i].sprites.size(); j++){
-					fleeingNPCs.add(NPCs[i].sprites.get(j));
+					ctx.fleeingNPCs.add(NPCs[i].sprites.get(j));
 					interactions.add(NPCs[i].name + " " + NPCs[i].sprites.get(j) + " > killSprite scoreChange=1");
 				}
 			}
@@ -578,13 +823,13 @@ public class RuleGenerator extends AbstractRuleGenerator{
 					|| NPCs[i].type.equalsIgnoreCase("bomberrandommissile") || NPCs[i].type.equalsIgnoreCase("spreader")) {
 				//make the bomber harmful for the player
 				for(int j=0; j<avatar.length; j++){
-					harmfulNPCs.add(NPCs[i].name);
+					ctx.harmfulNPCs.add(NPCs[i].name);
 					interactions.add(avatar[j].name + " " + NPCs[i].name + " > killSprite");
 				}
 				//make the spawned object harmful
-				if(this.random.nextDouble() < bomberProb){
+				if(random.nextDouble() < bomberProb){
 					for (int j = 0; j < NPCs[i].sprites.size(); j++) {
-						harmfulObjects.add(NPCs[i].sprites.get(j));
+						ctx.addHarmfulObject(NPCs[i].sprites.get(j));
 						interactions.add(avatar[j].name + " " + NPCs[i].sprites.get(j) + " > killSprite");
 					}
 				}
@@ -599,9 +844,9 @@ public class RuleGenerator extends AbstractRuleGenerator{
 					|| NPCs[i].type.equalsIgnoreCase("RandomAltChaser")) {
 				//make chasers harmful for the avatar
 				for(int j=0; j<NPCs[i].sprites.size(); j++){
-					if(isAvatar(NPCs[i].sprites.get(j))){
+					if(isAvatar(avatar, NPCs[i].sprites.get(j))){
 						for(int k=0; k<avatar.length; k++){
-							harmfulNPCs.add(NPCs[i].name);
+							ctx.harmfulNPCs.add(NPCs[i].name);
 							interactions.add(avatar[k].name + " " + NPCs[i].name + " > killSprite");
 						}
 					}
@@ -618,16 +863,16 @@ public class RuleGenerator extends AbstractRuleGenerator{
 			}
 			else if (NPCs[i].type.equalsIgnoreCase("randomnpc")) {
 				//random npc are harmful to the avatar
-				if(this.random.nextDouble() < randomNPCProb){
+				if(random.nextDouble() < randomNPCProb){
 					for (int j = 0; j < avatar.length; j++) {
-						harmfulNPCs.add(NPCs[i].name);
+						ctx.harmfulNPCs.add(NPCs[i].name);
 						interactions.add(avatar[j].name + " " + NPCs[i].name + " > killSprite");
 					}
 				}
 				//random npc are userful to the avatar
 				else{
 					for (int j = 0; j < avatar.length; j++) {
-						collectible.add(NPCs[i].name);
+						ctx.addCollectible(NPCs[i].name);
 						interactions.add(NPCs[i].name + " " + avatar[j].name + " > killSprite scoreChange=1");
 					}
 				}
@@ -637,34 +882,31 @@ public class RuleGenerator extends AbstractRuleGenerator{
 
 	/**
 	 * get the interactions of all sprites with movable sprites
+	 * @param ctx			the context of the current call
+	 * @param interactions	the buffer this phase adds its interactions to
+	 * @param random		the random object of this phase
 	 */
-	private void getMovableInteractions(){
+	private void getMovableInteractions(GenerationContext ctx, ArrayList<String> interactions, Random random){
+		SpriteData[] avatar = ctx.analysis.avatar;
+		SpriteData[] movables = ctx.analysis.movables;
+		SpriteData[] spawners = ctx.analysis.spawners;
 
+		HashSet<String> spawned = getSpawnedSprites(avatar);
+		spawned.addAll(getSpawnedSprites(spawners));
 		for(int j=0; j<movables.length; j++){
 			//Check if the movable object is not avatar or spawned child
-			boolean found = false;
-			for(int i=0; i<avatar.length; i++){
-				if(avatar[i].sprites.contains(movables[j].name)){
-					found = true;
-				}
-			}
-			for(int i=0; i<spawners.length; i++){
-				if(spawners[i].sprites.contains(movables[j].name)){
-					found = true;
-				}
-			}
-			if(!found){
+			if(!spawned.contains(movables[j].name)){
 				//Either make them harmful or useful
 				double rnd = random.nextDouble();
 				if(rnd < harmfulMovableProb){
 					for(int i=0; i<avatar.length; i++){
-						harmfulObjects.add(movables[j].name);
+						ctx.addHarmfulObject(movables[j].name);
 						interactions.add(avatar[i].name + " " + movables[j].name + " > killSprite");
 					}
 				}
 				else if(rnd > usefulMovableProb){
 					for(int i=0; i<avatar.length; i++){
-						collectible.add(movables[j].name);
+						ctx.addCollectible(movables[j].name);
 						interactions.add(movables[j].name + " " + avatar[i].name + " > killSprite scoreChange=1");
 					}
 				}
@@ -677,10 +919,127 @@ public class RuleGenerator extends AbstractRuleGenerator{
 		}
 	}
 
+	/**
+	 * run a single interaction phase
+	 * @param ctx		the context of the current call
+	 * @param phase		the phase to run
+	 * @param buffer	the buffer the phase adds its interactions to
+	 * @param random	the random object of the phase
+	 */
+	private void runPhase(GenerationContext ctx, Phase phase, ArrayList<String> buffer, Random random){
+		switch(phase){
+		case RESOURCE:
+			this.getResourceInteractions(ctx, buffer);
+			break;
+		case IMMOVABLE:
+			this.getImmovableInteractions(ctx, buffer, random);
+			break;
+		case NPC:
+			this.getNPCInteractions(ctx, buffer, random);
+			break;
+		case SPAWNER:
+			this.getSpawnerInteractions(ctx, buffer, random);
+			break;
+		case PORTAL:
+			this.getPortalInteractions(ctx, buffer);
+			break;
+		case MOVABLE:
+			this.getMovableInteractions(ctx, buffer, random);
+			break;
+		case WALL:
+			this.getWallInteractions(ctx, buffer, random);
+			break;
+		case AVATAR:
+			this.getAvatarInteractions(ctx, buffer, random);
+			break;
+		}
+	}
+
+	/**
+	 * run all interaction phases then merge their buffers into the interactions in the declared
+	 * phase order. The phases other phases depend on are run on the calling thread in the declared
+	 * order, which respects their dependencies. The phases nothing depends on are handed to the pool
+	 * once their dependencies are done, except the last one that the calling thread runs itself.
+	 * A handed over phase the pool hasn't started by the end is run by the calling thread too,
+	 * so concurrent calls never wait behind each other in the pool.
+	 * Every phase gets its own random object seeded in the declared order so the
+	 * result only depends on the random object of the call and not on thread scheduling.
+	 * @param ctx	the context of the current call
+	 */
+	private void runPhases(final GenerationContext ctx){
+		Phase[] phases = Phase.values();
+		EnumMap<Phase, ArrayList<String>> buffers = new EnumMap<Phase, ArrayList<String>>(Phase.class);
+		ArrayList<FutureTask<Void>> handedOver = new ArrayList<FutureTask<Void>>();
+		for(int i=0; i<phases.length; i++){
+			final Phase phase = phases[i];
+			final ArrayList<String> buffer = new ArrayList<String>();
+			final Random phaseRandom = new Random(ctx.random.nextLong());
+			buffers.put(phase, buffer);
+
+			if(Phase.required.contains(phase) || i == phases.length - 1){
+				runPhase(ctx, phase, buffer, phaseRandom);
+			}
+			else{
+				FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+					@Override
+					public void run() {
+						runPhase(ctx, phase, buffer, phaseRandom);
+					}
+				}, null);
+				handedOver.add(task);
+				phaseExecutor.execute(task);
+			}
+		}
+
+		for(int i=0; i<handedOver.size(); i++){
+			// does nothing if the pool already started the phase
+			handedOver.get(i).run();
+			awaitPhase(handedOver.get(i));
+		}
+		for(ArrayList<String> buffer : buffers.values()){
+			ctx.interactions.addAll(buffer);
+		}
+	}
+
+	/**
+	 * wait for a phase run by the pool and throw what it threw, as if it had run on the calling thread
+	 * @param task	the phase handed over to the pool
+	 */
+	private void awaitPhase(FutureTask<Void> task){
+		boolean interrupted = false;
+		try {
+			while(true){
+				try {
+					task.get();
+					return;
+				} catch (InterruptedException e) {
+					// the phase is already running, finish the call and keep the interrupt for the caller
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof RuntimeException){
+						throw (RuntimeException)cause;
+					}
+					if(cause instanceof Error){
+						throw (Error)cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			if(interrupted){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
 	/**
 	 * get the termination condition for the generated game
+	 * @param ctx	the context of the current call
 	 */
-	private void getTerminations(){
+	private void getTerminations(GenerationContext ctx){
+		Random random = ctx.random;
+		ArrayList<SpriteData> exit = ctx.analysis.exit;
 		
 		//If you have a door object make it the winning condition
 		if(exit.size() > 0){
@@ -694,20 +1053,20 @@ public class RuleGenerator extends AbstractRuleGenerator{
 
 			if(door != null){
 				
-				if(collectible.size() > 0 && criticalCollectible != null && random.nextDouble() < doorCollectibleProb){
-					terminations.add("MultiSpriteCounter stype1=" + criticalCollectible + " stype2=" + door.name + " limit=0 win=True");
-					terminations.add("Timeout limit=" + (2000 + random.nextInt(6) * 100) + " win=False"); // put a timer on the game to make sure it ends
+				if(ctx.collectible.size() > 0 && ctx.criticalCollectible != null && random.nextDouble() < doorCollectibleProb){
+					ctx.terminations.add("MultiSpriteCounter stype1=" + ctx.criticalCollectible + " stype2=" + door.name + " limit=0 win=True");
+					ctx.terminations.add("Timeout limit=" + (2000 + random.nextInt(6) * 100) + " win=False"); // put a timer on the game to make sure it ends
 					//System.out.println("MultiSpriteCounter stype1=(collectible) stype2=(door) limit=0 win=True");
 				}
 				else {
-					terminations.add("SpriteCounter stype=" + door.name + " limit=0 win=True");
+					ctx.terminations.add("SpriteCounter stype=" + door.name + " limit=0 win=True");
 					//System.out.println("SpriteCounter stype=(door) limit=0 win=True");
 				}
 			}
-			else if(collectible.size() > 0 && criticalCollectible != null){
-				terminations.add("SpriteCounter stype=" + criticalCollectible + " limit=0 win=True");
+			else if(ctx.collectible.size() > 0 && ctx.criticalCollectible != null){
+				ctx.terminations.add("SpriteCounter stype=" + ctx.criticalCollectible + " limit=0 win=True");
 				//System.out.println("SpriteCounter stype=(collectible) limit=0 win=True");
-				terminations.add("Timeout limit=" + (2000 + random.nextInt(6) * 100) + " win=False"); // put a timer on the game to make sure it ends
+				ctx.terminations.add("Timeout limit=" + (2000 + random.nextInt(6) * 100) + " win=False"); // put a timer on the game to make sure it ends
 			}
 		} //otherwise pick any other exit object
 		/*else if(collectible.size() > 0 && criticalCollectible != null){
@@ -717,28 +1076,28 @@ public class RuleGenerator extends AbstractRuleGenerator{
 		}*/
 		else {
 			//If we have fleeing NPCs use them as winning condition
-			if (fleeingNPCs.size() > 0 && npcToCatch != null) {
-				terminations.add("SpriteCounter stype=" + npcToCatch + " limit=0 win=True");
+			if (ctx.fleeingNPCs.size() > 0 && ctx.npcToCatch != null) {
+				ctx.terminations.add("SpriteCounter stype=" + ctx.npcToCatch + " limit=0 win=True");
 				//System.out.println("SpriteCounter stype=(fleeing) limit=0 win=True");
-				terminations.add("Timeout limit=" + (1000 + random.nextInt(6) * 100) + " win=False"); // put a timer on the game to make sure it ends
+				ctx.terminations.add("Timeout limit=" + (1000 + random.nextInt(6) * 100) + " win=False"); // put a timer on the game to make sure it ends
 			}
-			else if(harmfulNPCs.size() > 0 && this.la.getAvatars(true)[0].sprites.size() > 0 && criticalEnemyNPC != null){
-				terminations.add("SpriteCounter stype=" + criticalEnemyNPC + " limit=0 win=True");
+			else if(ctx.harmfulNPCs.size() > 0 && ctx.analysis.usefulAvatar[0].sprites.size() > 0 && ctx.criticalEnemyNPC != null){
+				ctx.terminations.add("SpriteCounter stype=" + ctx.criticalEnemyNPC + " limit=0 win=True");
 				//System.out.println("SpriteCounter stype=(harmful) limit=0 win=True");
-				terminations.add("Timeout limit=" + (1000 + random.nextInt(6) * 100) + " win=False"); // put a timer on the game to make sure it ends
+				ctx.terminations.add("Timeout limit=" + (1000 + random.nextInt(6) * 100) + " win=False"); // put a timer on the game to make sure it ends
 			}
 			//Otherwise use timeout as winning condition
 			else {
-				terminations.add("Timeout limit=" + (500 + random.nextInt(7) * 100) + " win=True");
+				ctx.terminations.add("Timeout limit=" + (500 + random.nextInt(7) * 100) + " win=True");
 				//System.out.println("Timeout limit=" + (500 + random.nextInt(7) * 100) + " win=True");
 			}			
 		}
 
 		//Add the losing condition which is the player dies
-		if(harmfulObjects.size() > 0 || harmfulNPCs.size() > 0){
-			SpriteData[] usefulAvatar = this.la.getAvatars(true);
+		if(ctx.harmfulObjects.size() > 0 || ctx.harmfulNPCs.size() > 0){
+			SpriteData[] usefulAvatar = ctx.analysis.usefulAvatar;
 			for(int i=0; i<usefulAvatar.length; i++){
-				terminations.add("SpriteCounter stype=" + usefulAvatar[i].name + " limit=0 win=False");
+				ctx.terminations.add("SpriteCounter stype=" + usefulAvatar[i].name + " limit=0 win=False");
 			}
 		}
 	}
@@ -754,57 +1113,68 @@ public class RuleGenerator extends AbstractRuleGenerator{
      */
     @Override
     public String[][] generateRules(SLDescription sl, ElapsedCpuTimer time) {
-	this.interactions.clear();
-	this.terminations.clear();
-	this.collectible.clear();
-	this.harmfulObjects.clear();
-	this.fleeingNPCs.clear();
+	GenerationContext ctx = new GenerationContext(getAnalysis(), new Random(this.random.nextLong()));
 	
-	this.getResourceInteractions();
-	this.getImmovableInteractions();
-	this.getNPCInteractions();
-	this.getSpawnerInteractions();
-	this.getPortalInteractions();
-	this.getMovableInteractions();
-	this.getWallInteractions();
-	this.getAvatarInteractions();
+	this.runPhases(ctx);
 	
-	this.getTerminations();
+	this.getTerminations(ctx);
 	
-	return new String[][]{interactions.toArray(new String[interactions.size()]), terminations.toArray(new String[terminations.size()])};
+	this.lastStructure.set(this.getSpriteSetStructure(ctx));
+	return new String[][]{ctx.interactions.toArray(new String[ctx.interactions.size()]), ctx.terminations.toArray(new String[ctx.terminations.size()])};
     }
     
+    /**
+     * get the sprite set structure of the rules generated by the last call of
+     * generateRules on the current thread
+     * @return	the fleeing, harmful and collectible sprites
+     */
     @Override
     public HashMap<String, ArrayList<String>> getSpriteSetStructure() {
+        HashMap<String, ArrayList<String>> struct = new HashMap<String, ArrayList<String>>();
+        HashMap<String, ArrayList<String>> last = this.lastStructure.get();
+        if(last != null){
+            for(String key : last.keySet()){
+        	struct.put(key, new ArrayList<String>(last.get(key)));
+            }
+        }
+        return struct;
+    }
+    
+    /**
+     * get the sprite set structure of a generateRules call
+     * @param ctx	the context of the call
+     * @return		the fleeing, harmful and collectible sprites
+     */
+    private HashMap<String, ArrayList<String>> getSpriteSetStructure(GenerationContext ctx) {
         HashMap<String, ArrayList<String>> struct = new HashMap<String, ArrayList<String>>();
         HashMap<String, Boolean> testing = new HashMap<String, Boolean>();
         
-        if(fleeingNPCs.size() > 0){
+        if(ctx.fleeingNPCs.size() > 0){
             struct.put("fleeing", new ArrayList<String>());
         }
-        for(int i=0; i<this.fleeingNPCs.size(); i++){
-            if(!testing.containsKey(this.fleeingNPCs.get(i))){
-        	testing.put(this.fleeingNPCs.get(i), true);
-        	struct.get("fleeing").add(this.fleeingNPCs.get(i));
+        for(int i=0; i<ctx.fleeingNPCs.size(); i++){
+            if(!testing.containsKey(ctx.fleeingNPCs.get(i))){
+        	testing.put(ctx.fleeingNPCs.get(i), true);
+        	struct.get("fleeing").add(ctx.fleeingNPCs.get(i));
             }
         }
         
-        if(harmfulObjects.size() > 0){
+        if(ctx.harmfulObjects.size() > 0){
             struct.put("harmful", new ArrayList<String>());
         }
-        for(int i=0; i<this.harmfulObjects.size(); i++){
-            if(!testing.containsKey(this.harmfulObjects.get(i))){
-        	testing.put(this.harmfulObjects.get(i), true);
-        	struct.get("harmful").add(this.harmfulObjects.get(i));
+        for(int i=0; i<ctx.harmfulObjects.size(); i++){
+            if(!testing.containsKey(ctx.harmfulObjects.get(i))){
+        	testing.put(ctx.harmfulObjects.get(i), true);
+        	struct.get("harmful").add(ctx.harmfulObjects.get(i));
             }
         }
-        if(collectible.size() > 0){
+        if(ctx.collectible.size() > 0){
             struct.put("collectible", new ArrayList<String>());
         }
-        for(int i=0; i<this.collectible.size(); i++){
-            if(!testing.containsKey(this.collectible.get(i))){
-        	testing.put(this.collectible.get(i), true);
-        	struct.get("collectible").add(this.collectible.get(i));
+        for(int i=0; i<ctx.collectible.size(); i++){
+            if(!testing.containsKey(ctx.collectible.get(i))){
+        	testing.put(ctx.collectible.get(i), true);
+        	struct.get("collectible").add(ctx.collectible.get(i));
             }
         }
         
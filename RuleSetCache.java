@@ -0,0 +1,284 @@
+package tracks.ruleGeneration.brkdncr94;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An LRU cache of evaluation results keyed by the game, the level and the canonical form of a
+ * generated rule set. Different seeds and phase orders often produce the same game with the rules
+ * in a different order or duplicated, the canonical form removes these differences so equivalent
+ * games share a key. The same rules evaluated on another game or level get a different key.
+ * The rules must be decoded with SLDescription.modifyRules before they are hashed, the sprite names
+ * generateRules sees are obfuscated with the seed so undecoded rules of different seeds never match.
+ */
+
+public class RuleSetCache {
+	/**
+	 * default number of entries kept in the cache
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/**
+	 * maximum number of entries kept before the least recently used one is evicted
+	 */
+	private int capacity;
+
+	/**
+	 * evaluation results keyed by the hex string of the canonical hash, kept in access order
+	 */
+	private LinkedHashMap<String, Double> entries;
+
+	/**
+	 * Constructor that creates a cache with the default capacity
+	 */
+	public RuleSetCache(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor that creates an empty cache
+	 * @param capacity	maximum number of entries kept in the cache, at least 1
+	 */
+	public RuleSetCache(int capacity){
+		if(capacity <= 0){
+			throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<String, Double>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+				return size() > RuleSetCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Normalize a single rule: collapse whitespace and sort the parameters after the
+	 * effect (for interactions) or the termination type (for terminations)
+	 * @param rule	the rule in VGDL text form
+	 * @return		the normalized rule
+	 */
+	private static String normalizeRule(String rule){
+		String left = "";
+		String right = rule.trim();
+		int arrow = right.indexOf('>');
+		if(arrow >= 0){
+			left = right.substring(0, arrow).trim().replaceAll("\\s+", " ") + " > ";
+			right = right.substring(arrow + 1).trim();
+		}
+
+		String[] parts = right.split("\\s+");
+		if(parts.length > 2){
+			Arrays.sort(parts, 1, parts.length);
+		}
+		StringBuilder result = new StringBuilder(left);
+		for(int i=0; i<parts.length; i++){
+			if(i > 0){
+				result.append(' ');
+			}
+			result.append(parts[i]);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Get the canonical form of a rule set: every rule normalized, then sorted and deduplicated
+	 * @param rules	two arrays the first contains the interaction rules
+	 * 			while the second contains the termination rules
+	 * @return		the canonical interaction and termination rules
+	 */
+	public static String[][] canonicalize(String[][] rules){
+		String[][] result = new String[rules.length][];
+		for(int i=0; i<rules.length; i++){
+			TreeSet<String> sorted = new TreeSet<String>();
+			for(int j=0; j<rules[i].length; j++){
+				sorted.add(normalizeRule(rules[i][j]));
+			}
+			result[i] = sorted.toArray(new String[sorted.size()]);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the stable 128 bit hash of the game, the level and the canonical form of a rule set
+	 * @param game	identifier of the game the rules were generated for (e.g. its file)
+	 * @param level	identifier of the level the rules were generated for (e.g. its file)
+	 * @param rules	two arrays the first contains the decoded interaction rules
+	 * 			while the second contains the decoded termination rules
+	 * @return		the hash as a 32 character hex string
+	 */
+	public static String hash(String game, String level, String[][] rules){
+		String[][] canonical = canonicalize(rules);
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+
+		digest.update(game.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte)0);
+		digest.update(level.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte)0);
+		for(int i=0; i<canonical.length; i++){
+			for(int j=0; j<canonical[i].length; j++){
+				digest.update(canonical[i][j].getBytes(StandardCharsets.UTF_8));
+				digest.update((byte)'\n');
+			}
+			// separate the interactions from the terminations
+			digest.update((byte)0);
+		}
+
+		byte[] bytes = digest.digest();
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for(int i=0; i<bytes.length; i++){
+			hex.append(String.format("%02x", bytes[i] & 0xff));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Get the cached evaluation result of a rule set
+	 * @param game	identifier of the game the rules were generated for
+	 * @param level	identifier of the level the rules were generated for
+	 * @param rules	the decoded interaction and termination rules
+	 * @return		the cached result or null if this game was never evaluated
+	 */
+	public Double get(String game, String level, String[][] rules){
+		return getByHash(hash(game, level, rules));
+	}
+
+	/**
+	 * Get the cached evaluation result using an already computed hash
+	 * @param key	the hash returned by {@link #hash(String, String, String[][])}
+	 * @return		the cached result or null if this game was never evaluated
+	 */
+	public synchronized Double getByHash(String key){
+		return entries.get(key);
+	}
+
+	/**
+	 * Store the evaluation result of a rule set
+	 * @param game		identifier of the game the rules were generated for
+	 * @param level		identifier of the level the rules were generated for
+	 * @param rules		the decoded interaction and termination rules
+	 * @param result	the evaluation result of the game
+	 * @return			the hash used as the key
+	 */
+	public String put(String game, String level, String[][] rules, double result){
+		String key = hash(game, level, rules);
+		putByHash(key, result);
+		return key;
+	}
+
+	/**
+	 * Store an evaluation result using an already computed hash
+	 * @param key		the hash returned by {@link #hash(String, String, String[][])}
+	 * @param result	the evaluation result of the game
+	 */
+	public synchronized void putByHash(String key, double result){
+		entries.put(key, result);
+	}
+
+	/**
+	 * @return	number of entries in the cache
+	 */
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Write all entries to a file, one "hash result" pair per line from the least
+	 * to the most recently used so loading restores the same eviction order.
+	 * The entries are written to a temporary file that then replaces the target,
+	 * so a crash while saving leaves the previous file intact.
+	 * @param file	the file to write to
+	 * @throws IOException	if the file can't be written
+	 */
+	public synchronized void save(File file) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("rulecache", ".tmp", directory);
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(temp));
+			try {
+				for(Map.Entry<String, Double> entry : entries.entrySet()){
+					writer.write(entry.getKey() + " " + entry.getValue());
+					writer.newLine();
+				}
+			} finally {
+				writer.close();
+			}
+
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	/**
+	 * Check if a line of a saved cache is a valid "hash result" pair
+	 * @param parts	the line split on spaces
+	 * @return		true if the line can be loaded
+	 */
+	private static boolean isValidEntry(String[] parts){
+		if(parts.length != 2 || !parts[0].matches("[0-9a-f]{32}")){
+			return false;
+		}
+		try {
+			Double.parseDouble(parts[1]);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Add all entries stored in a file written by {@link #save(File)}.
+	 * Malformed lines (e.g. a truncated last line) are skipped and counted.
+	 * @param file	the file to read from
+	 * @return		number of skipped lines
+	 * @throws IOException	if the file can't be read
+	 */
+	public synchronized int load(File file) throws IOException {
+		int skipped = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while((line = reader.readLine()) != null){
+				line = line.trim();
+				if(line.length() == 0){
+					continue;
+				}
+				String[] parts = line.split(" ");
+				if(!isValidEntry(parts)){
+					skipped += 1;
+					continue;
+				}
+				entries.put(parts[0], Double.parseDouble(parts[1]));
+			}
+		} finally {
+			reader.close();
+		}
+		return skipped;
+	}
+}
@@ -0,0 +1,540 @@
+package tracks.ruleGeneration.brkdncr94;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of generated rule sets used to ship them to remote evaluators.
+ * A batch is a header followed by frames written by one {@link Encoder} and read back in the
+ * same order by one {@link Decoder}. Both keep a dictionary of the sprite names, effects,
+ * termination types and parameter keys seen since the start of the batch, a frame only carries
+ * the strings that are new to it and refers to everything by index, so a batch of rule sets of
+ * the same game pays for every string once. Indices, counts and integer parameters are varint
+ * encoded. The readers and writers work directly on ByteBuffers so batches can be streamed over
+ * pipes or sockets without copies.
+ */
+
+public class RuleSetCodec {
+	/**
+	 * magic number at the start of a batch ("RGRS")
+	 */
+	public static final int BATCH_MAGIC = 0x52475253;
+	/**
+	 * version of the encoding written in the batch header
+	 */
+	public static final int VERSION = 2;
+
+	/**
+	 * kinds of frames
+	 */
+	private static final int FRAME_RULES = 0;
+	private static final int FRAME_FAILED = 1;
+
+	/**
+	 * kinds of parameter values
+	 */
+	private static final int VALUE_SYMBOL = 0;
+	private static final int VALUE_INT = 1;
+	private static final int VALUE_TRUE = 2;
+	private static final int VALUE_FALSE = 3;
+	private static final int VALUE_NONE = 4;
+
+	/**
+	 * A decoded rule set: the output of generateRules with the matching getSpriteSetStructure,
+	 * or the reason the generation failed
+	 */
+	public static class RuleSet {
+		/**
+		 * two arrays the first contains the interaction rules while the second contains the termination rules,
+		 * null if the generation failed
+		 */
+		public final String[][] rules;
+		/**
+		 * the sprite set structure of the game, null if the generation failed
+		 */
+		public final HashMap<String, ArrayList<String>> structure;
+		/**
+		 * why the generation failed, null if it succeeded
+		 */
+		public final String failure;
+
+		public RuleSet(String[][] rules, HashMap<String, ArrayList<String>> structure){
+			this.rules = rules;
+			this.structure = structure;
+			this.failure = null;
+		}
+
+		public RuleSet(String failure){
+			this.rules = null;
+			this.structure = null;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Dictionary that gives every distinct string of a batch an index in order of appearance
+	 */
+	private static class Dictionary {
+		private HashMap<String, Integer> indices = new HashMap<String, Integer>();
+		private ArrayList<String> symbols = new ArrayList<String>();
+
+		private void add(String symbol){
+			if(!indices.containsKey(symbol)){
+				indices.put(symbol, symbols.size());
+				symbols.add(symbol);
+			}
+		}
+
+		private int get(String symbol){
+			return indices.get(symbol);
+		}
+
+		/**
+		 * Forget the strings added after the dictionary had the given size
+		 * @param size	the size to go back to
+		 */
+		private void truncate(int size){
+			while(symbols.size() > size){
+				indices.remove(symbols.remove(symbols.size() - 1));
+			}
+		}
+	}
+
+	/**
+	 * Writes the frames of one batch, every string is only written by the first frame using it
+	 */
+	public static class Encoder {
+		private Dictionary dictionary = new Dictionary();
+
+		/**
+		 * Write one rule set as a length prefixed frame. If the buffer is too small its position
+		 * is left unchanged before rethrowing, so the caller can flush it and try again.
+		 * @param out		the buffer to write to
+		 * @param rules		two arrays the first contains the interaction rules
+		 * 			while the second contains the termination rules
+		 * @param structure	the sprite set structure of the game
+		 */
+		public void writeFrame(ByteBuffer out, String[][] rules, HashMap<String, ArrayList<String>> structure){
+			String[][][] interactions = new String[rules[0].length][][];
+			String[][][] terminations = new String[rules[1].length][][];
+			int known = dictionary.symbols.size();
+			for(int i=0; i<interactions.length; i++){
+				interactions[i] = tokenize(rules[0][i]);
+				addSymbols(dictionary, interactions[i]);
+			}
+			for(int i=0; i<terminations.length; i++){
+				terminations[i] = tokenize(rules[1][i]);
+				addSymbols(dictionary, terminations[i]);
+			}
+			for(Map.Entry<String, ArrayList<String>> entry : structure.entrySet()){
+				dictionary.add(entry.getKey());
+				for(int i=0; i<entry.getValue().size(); i++){
+					dictionary.add(entry.getValue().get(i));
+				}
+			}
+
+			int start = out.position();
+			try {
+				// leave room for the frame length
+				out.putInt(0);
+				out.put((byte)FRAME_RULES);
+				writeVarint(out, dictionary.symbols.size() - known);
+				for(int i=known; i<dictionary.symbols.size(); i++){
+					writeString(out, dictionary.symbols.get(i));
+				}
+				writeVarint(out, interactions.length);
+				for(int i=0; i<interactions.length; i++){
+					writeRule(out, dictionary, interactions[i]);
+				}
+				writeVarint(out, terminations.length);
+				for(int i=0; i<terminations.length; i++){
+					writeRule(out, dictionary, terminations[i]);
+				}
+				writeVarint(out, structure.size());
+				for(Map.Entry<String, ArrayList<String>> entry : structure.entrySet()){
+					writeVarint(out, dictionary.get(entry.getKey()));
+					writeVarint(out, entry.getValue().size());
+					for(int i=0; i<entry.getValue().size(); i++){
+						writeVarint(out, dictionary.get(entry.getValue().get(i)));
+					}
+				}
+			} catch (BufferOverflowException e) {
+				// the frame was not written, so its new strings are still unknown to the reader
+				dictionary.truncate(known);
+				out.position(start);
+				throw e;
+			}
+			out.putInt(start, out.position() - start - 4);
+		}
+
+		/**
+		 * Write a frame recording that the generation of a rule set failed, so the frames
+		 * of a batch stay one per rule set. If the buffer is too small its position is left
+		 * unchanged before rethrowing.
+		 * @param out		the buffer to write to
+		 * @param message	why the generation failed
+		 */
+		public void writeFailure(ByteBuffer out, String message){
+			int start = out.position();
+			try {
+				out.putInt(0);
+				out.put((byte)FRAME_FAILED);
+				writeString(out, message);
+			} catch (BufferOverflowException e) {
+				out.position(start);
+				throw e;
+			}
+			out.putInt(start, out.position() - start - 4);
+		}
+	}
+
+	/**
+	 * Reads the frames of one batch in the order they were written. After a malformed
+	 * frame the dictionary is undefined and the rest of the batch can't be read.
+	 */
+	public static class Decoder {
+		private ArrayList<String> symbols = new ArrayList<String>();
+
+		/**
+		 * Read one frame
+		 * @param in	the buffer to read from, holding the whole frame
+		 * @return		the decoded rule set
+		 * @throws IllegalArgumentException	if the frame is malformed
+		 */
+		public RuleSet readFrame(ByteBuffer in){
+			if(in.remaining() < 4){
+				throw new IllegalArgumentException("Truncated rule set frame");
+			}
+			int length = in.getInt();
+			if(length < 1 || length > in.remaining()){
+				throw new IllegalArgumentException("Malformed rule set frame length " + length);
+			}
+			int end = in.position() + length;
+			// read through a view that ends with the frame, so a corrupt count can't read past it
+			ByteBuffer frame = in.duplicate();
+			frame.limit(end);
+			in.position(end);
+			try {
+				RuleSet result = readFrameContent(frame);
+				if(frame.hasRemaining()){
+					throw new IllegalArgumentException("Malformed rule set frame");
+				}
+				return result;
+			} catch (BufferUnderflowException e) {
+				throw new IllegalArgumentException("Malformed rule set frame", e);
+			}
+		}
+
+		/**
+		 * Read the content of a frame after its length
+		 * @param in	the frame
+		 * @return		the decoded rule set
+		 */
+		private RuleSet readFrameContent(ByteBuffer in){
+			int kind = in.get();
+			if(kind == FRAME_FAILED){
+				return new RuleSet(readString(in));
+			}
+			if(kind != FRAME_RULES){
+				throw new IllegalArgumentException("Unknown frame kind " + kind);
+			}
+
+			int added = readCount(in);
+			for(int i=0; i<added; i++){
+				symbols.add(readString(in));
+			}
+
+			String[][] rules = new String[2][];
+			rules[0] = new String[readCount(in)];
+			for(int i=0; i<rules[0].length; i++){
+				rules[0][i] = readRule(in, symbols, true);
+			}
+			rules[1] = new String[readCount(in)];
+			for(int i=0; i<rules[1].length; i++){
+				rules[1][i] = readRule(in, symbols, false);
+			}
+
+			HashMap<String, ArrayList<String>> structure = new HashMap<String, ArrayList<String>>();
+			int groups = readCount(in);
+			for(int i=0; i<groups; i++){
+				String key = readSymbol(in, symbols);
+				int size = readCount(in);
+				ArrayList<String> sprites = new ArrayList<String>(size);
+				for(int j=0; j<size; j++){
+					sprites.add(readSymbol(in, symbols));
+				}
+				structure.put(key, sprites);
+			}
+			return new RuleSet(rules, structure);
+		}
+	}
+
+	/**
+	 * Write an unsigned varint
+	 * @param out	the buffer to write to
+	 * @param value	the value, treated as unsigned
+	 */
+	private static void writeVarint(ByteBuffer out, int value){
+		while((value & ~0x7f) != 0){
+			out.put((byte)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte)value);
+	}
+
+	/**
+	 * Read an unsigned varint
+	 * @param in	the buffer to read from
+	 * @return		the value
+	 */
+	private static int readVarint(ByteBuffer in){
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7){
+			byte b = in.get();
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0){
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * Read a count of items that take at least one byte each
+	 * @param in	the buffer to read from
+	 * @return		the count
+	 */
+	private static int readCount(ByteBuffer in){
+		int count = readVarint(in);
+		if(count < 0 || count > in.remaining()){
+			throw new IllegalArgumentException("Malformed count " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Read a dictionary index and look it up
+	 * @param in		the buffer to read from
+	 * @param symbols	the dictionary of the batch
+	 * @return			the string at the index
+	 */
+	private static String readSymbol(ByteBuffer in, ArrayList<String> symbols){
+		int index = readVarint(in);
+		if(index < 0 || index >= symbols.size()){
+			throw new IllegalArgumentException("Unknown dictionary index " + index);
+		}
+		return symbols.get(index);
+	}
+
+	/**
+	 * Write a length prefixed UTF-8 string
+	 * @param out		the buffer to write to
+	 * @param value		the string
+	 */
+	private static void writeString(ByteBuffer out, String value){
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.put(bytes);
+	}
+
+	/**
+	 * Read a length prefixed UTF-8 string, directly from the backing array if there is one
+	 * @param in	the buffer to read from
+	 * @return		the string
+	 */
+	private static String readString(ByteBuffer in){
+		int size = readCount(in);
+		if(in.hasArray()){
+			String value = new String(in.array(), in.arrayOffset() + in.position(), size, StandardCharsets.UTF_8);
+			in.position(in.position() + size);
+			return value;
+		}
+		byte[] bytes = new byte[size];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Split a rule into its tokens: the sprites before the '>' (if any), then the effect or
+	 * termination type, then the parameters
+	 * @param rule	the rule in VGDL text form
+	 * @return		the sprites and the remaining tokens
+	 */
+	private static String[][] tokenize(String rule){
+		String left = "";
+		String right = rule.trim();
+		int arrow = right.indexOf('>');
+		if(arrow >= 0){
+			left = right.substring(0, arrow).trim();
+			right = right.substring(arrow + 1).trim();
+		}
+		return new String[][]{left.length() == 0 ? new String[0] : left.split("\\s+"), right.split("\\s+")};
+	}
+
+	/**
+	 * Check if a parameter value can be written as an integer without changing its text
+	 * @param value	the parameter value
+	 * @return		true if it is a canonical integer
+	 */
+	private static boolean isInteger(String value){
+		try {
+			return Integer.toString(Integer.parseInt(value)).equals(value);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Add all strings of a rule to the dictionary
+	 * @param dictionary	the dictionary of the batch
+	 * @param tokens		the tokenized rule
+	 */
+	private static void addSymbols(Dictionary dictionary, String[][] tokens){
+		for(int i=0; i<tokens[0].length; i++){
+			dictionary.add(tokens[0][i]);
+		}
+		dictionary.add(tokens[1][0]);
+		for(int i=1; i<tokens[1].length; i++){
+			int equals = tokens[1][i].indexOf('=');
+			if(equals < 0){
+				dictionary.add(tokens[1][i]);
+				continue;
+			}
+			dictionary.add(tokens[1][i].substring(0, equals));
+			String value = tokens[1][i].substring(equals + 1);
+			if(!isInteger(value) && !value.equals("True") && !value.equals("False")){
+				dictionary.add(value);
+			}
+		}
+	}
+
+	/**
+	 * Write a tokenized rule
+	 * @param out			the buffer to write to
+	 * @param dictionary	the dictionary of the batch
+	 * @param tokens		the tokenized rule
+	 */
+	private static void writeRule(ByteBuffer out, Dictionary dictionary, String[][] tokens){
+		writeVarint(out, tokens[0].length);
+		for(int i=0; i<tokens[0].length; i++){
+			writeVarint(out, dictionary.get(tokens[0][i]));
+		}
+		writeVarint(out, dictionary.get(tokens[1][0]));
+		writeVarint(out, tokens[1].length - 1);
+		for(int i=1; i<tokens[1].length; i++){
+			int equals = tokens[1][i].indexOf('=');
+			if(equals < 0){
+				writeVarint(out, dictionary.get(tokens[1][i]));
+				out.put((byte)VALUE_NONE);
+				continue;
+			}
+			writeVarint(out, dictionary.get(tokens[1][i].substring(0, equals)));
+			String value = tokens[1][i].substring(equals + 1);
+			if(isInteger(value)){
+				int number = Integer.parseInt(value);
+				out.put((byte)VALUE_INT);
+				writeVarint(out, (number << 1) ^ (number >> 31));
+			}
+			else if(value.equals("True")){
+				out.put((byte)VALUE_TRUE);
+			}
+			else if(value.equals("False")){
+				out.put((byte)VALUE_FALSE);
+			}
+			else{
+				out.put((byte)VALUE_SYMBOL);
+				writeVarint(out, dictionary.get(value));
+			}
+		}
+	}
+
+	/**
+	 * Read a rule back into its VGDL text form
+	 * @param in		the buffer to read from
+	 * @param symbols	the dictionary of the batch
+	 * @param arrow		true for interactions, false for terminations
+	 * @return			the rule
+	 */
+	private static String readRule(ByteBuffer in, ArrayList<String> symbols, boolean arrow){
+		StringBuilder rule = new StringBuilder();
+		int sprites = readCount(in);
+		for(int i=0; i<sprites; i++){
+			rule.append(readSymbol(in, symbols)).append(' ');
+		}
+		if(arrow){
+			rule.append("> ");
+		}
+		rule.append(readSymbol(in, symbols));
+		int parameters = readCount(in);
+		for(int i=0; i<parameters; i++){
+			rule.append(' ').append(readSymbol(in, symbols));
+			int kind = in.get();
+			switch(kind){
+			case VALUE_SYMBOL:
+				rule.append('=').append(readSymbol(in, symbols));
+				break;
+			case VALUE_INT:
+				int number = readVarint(in);
+				rule.append('=').append((number >>> 1) ^ -(number & 1));
+				break;
+			case VALUE_TRUE:
+				rule.append("=True");
+				break;
+			case VALUE_FALSE:
+				rule.append("=False");
+				break;
+			case VALUE_NONE:
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown parameter kind " + kind);
+			}
+		}
+		return rule.toString();
+	}
+
+	/**
+	 * Write the header of a batch of frames, the frames that follow must come from a new {@link Encoder}
+	 * @param out	the buffer to write to
+	 * @param count	number of frames that follow
+	 */
+	public static void writeBatchHeader(ByteBuffer out, int count){
+		out.putInt(BATCH_MAGIC);
+		out.put((byte)VERSION);
+		writeVarint(out, count);
+	}
+
+	/**
+	 * Read the header of a batch of frames, the frames that follow must be read with a new {@link Decoder}
+	 * @param in	the buffer to read from
+	 * @return		number of frames that follow
+	 */
+	public static int readBatchHeader(ByteBuffer in){
+		if(in.getInt() != BATCH_MAGIC){
+			throw new IllegalArgumentException("Not a rule set batch");
+		}
+		int version = in.get();
+		if(version != VERSION){
+			throw new IllegalArgumentException("Unsupported rule set batch version " + version);
+		}
+		return readVarint(in);
+	}
+
+	/**
+	 * Get the length of the frame at the current position without consuming it
+	 * @param in	the buffer to read from
+	 * @return		total number of bytes of the frame including its length prefix,
+	 * 			or -1 if the buffer doesn't contain the whole frame yet
+	 */
+	public static int peekFrameLength(ByteBuffer in){
+		if(in.remaining() < 4){
+			return -1;
+		}
+		int length = in.getInt(in.position()) + 4;
+		return in.remaining() < length ? -1 : length;
+	}
+}
@@ -0,0 +1,151 @@
+package tracks.ruleGeneration.brkdncr94;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import core.game.Game;
+import core.game.SLDescription;
+import core.vgdl.VGDLFactory;
+import core.vgdl.VGDLParser;
+import core.vgdl.VGDLRegistry;
+import tools.ElapsedCpuTimer;
+import tools.IO;
+
+/**
+ * A standalone driver that measures how the generator scales with the number of sprite types.
+ * For every size it writes a synthetic game with that many sprite types (chasers, fleeing NPCs,
+ * bombers, missiles, spawners with their spawned sprites, resources and immovables) and a level
+ * containing all of them, then times the constructor and generateRules. If the generation is
+ * linear in the number of rules it emits, the time per rule stays flat as the size grows.
+ * Usage: ScalabilityBenchmark [spriteTypes...]
+ */
+
+public class ScalabilityBenchmark {
+	/**
+	 * sizes used when none are given
+	 */
+	private static final int[] DEFAULT_SIZES = new int[]{1250, 2500, 5000, 10000, 20000};
+	/**
+	 * number of timed runs per size, the fastest one is reported
+	 */
+	private static final int RUNS = 3;
+
+	/**
+	 * Write a synthetic game description
+	 * @param file		the file to write to
+	 * @param perKind	number of sprite types of each kind
+	 * @throws IOException	if the file can't be written
+	 */
+	private static void writeGame(File file, int perKind) throws IOException {
+		StringBuilder game = new StringBuilder();
+		game.append("BasicGame\n");
+		game.append("    SpriteSet\n");
+		game.append("        floor > Immovable hidden=True\n");
+		game.append("        wall > Immovable\n");
+		game.append("        goal > Door\n");
+		game.append("        bullet > Missile\n");
+		game.append("        avatar > ShootAvatar stype=bullet\n");
+		for(int i=0; i<perKind; i++){
+			game.append("        chaser").append(i).append(" > Chaser stype=avatar\n");
+			game.append("        fleeing").append(i).append(" > Fleeing stype=avatar\n");
+			game.append("        bomb").append(i).append(" > Missile\n");
+			game.append("        bomber").append(i).append(" > Bomber stype=bomb").append(i).append(" prob=0.1\n");
+			game.append("        missile").append(i).append(" > Missile\n");
+			game.append("        spawned").append(i).append(" > Missile\n");
+			game.append("        spawner").append(i).append(" > SpawnPoint stype=spawned").append(i).append(" prob=0.1\n");
+			game.append("        resource").append(i).append(" > Resource limit=5\n");
+			game.append("        immovable").append(i).append(" > Immovable\n");
+		}
+
+		game.append("    LevelMapping\n");
+		game.append("        . > floor\n");
+		game.append("        w > floor wall\n");
+		game.append("        A > floor avatar\n");
+		game.append("        g > floor goal\n");
+		String[] kinds = new String[]{"chaser", "fleeing", "bomber", "missile", "spawner", "resource", "immovable"};
+		for(int k=0; k<kinds.length; k++){
+			game.append("        ").append((char)('a' + k)).append(" > floor");
+			for(int i=0; i<perKind; i++){
+				game.append(' ').append(kinds[k]).append(i);
+			}
+			game.append('\n');
+		}
+
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(game.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Write a walled level that contains every mapped sprite
+	 * @param file	the file to write to
+	 * @throws IOException	if the file can't be written
+	 */
+	private static void writeLevel(File file) throws IOException {
+		String[] lines = new String[]{
+				"wwwwwwwwwwww",
+				"wA.a.b.c.d.w",
+				"w..........w",
+				"w.e.f.g...gw",
+				"wwwwwwwwwwww"};
+		FileWriter writer = new FileWriter(file);
+		try {
+			for(int i=0; i<lines.length; i++){
+				writer.write(lines[i] + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = DEFAULT_SIZES;
+		if(args.length > 0){
+			sizes = new int[args.length];
+			for(int i=0; i<args.length; i++){
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		File directory = new File(System.getProperty("java.io.tmpdir"));
+		System.out.println("spriteTypes\trules\tms\tnsPerRule");
+		for(int s=0; s<sizes.length; s++){
+			// 9 sprite types are added for every index of every kind
+			int perKind = Math.max(1, sizes[s] / 9);
+			File gameFile = File.createTempFile("scalability", ".txt", directory);
+			File levelFile = File.createTempFile("scalability_lvl", ".txt", directory);
+			try {
+				writeGame(gameFile, perKind);
+				writeLevel(levelFile);
+
+				VGDLFactory.GetInstance().init();
+				VGDLRegistry.GetInstance().init();
+				Game game = new VGDLParser().parseGame(gameFile.getPath());
+				String[] lines = new IO().readFile(levelFile.getPath());
+
+				long best = Long.MAX_VALUE;
+				int rules = 0;
+				for(int r=0; r<RUNS; r++){
+					SLDescription sl = new SLDescription(game, lines, r);
+					ElapsedCpuTimer timer = new ElapsedCpuTimer();
+					long start = System.nanoTime();
+					RuleGenerator generator = new RuleGenerator(sl, timer, r);
+					String[][] result = generator.generateRules(sl, timer);
+					long elapsed = System.nanoTime() - start;
+					if(elapsed < best){
+						best = elapsed;
+						rules = result[0].length + result[1].length;
+					}
+				}
+				System.out.println((perKind * 9) + "\t" + rules + "\t" + (best / 1000000) + "\t" + (best / Math.max(1, rules)));
+			} finally {
+				gameFile.delete();
+				levelFile.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package tracks.ruleGeneration.brkdncr94;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinator of the sharded generation. It splits (game, level, seed range) jobs into shards
+ * and hands them to {@link ShardWorker} processes connecting over sockets, either spawned on this
+ * machine or started on other nodes. Every worker owns a deque of shards, when it runs dry it takes
+ * from the unassigned shards and then steals half of the largest deque of another worker. A shard
+ * that fails on a worker, or whose worker dies, is dispatched again; dead local workers are respawned.
+ * A worker that sends nothing, not even a heartbeat, for WORKER_TIMEOUT is considered dead, and one
+ * that sends no result for SEED_TIMEOUT is considered stuck: its connection is closed and its shard
+ * dispatched again.
+ * The results are written to one output stream as soon as a shard is finished, so nothing waits in
+ * memory for slower shards. Each shard is written as its index (int), game file and level file (UTF),
+ * first and after-last seed (int), followed by one {@link RuleSetCodec} batch with a frame for every
+ * seed of the shard in seed order. The frame of a seed whose generation failed records the failure.
+ * Usage: ShardCoordinator port outputFile localWorkers shardSize (gameFile levelFile seedStart seedEnd)+
+ */
+
+public class ShardCoordinator {
+	/**
+	 * number of times a shard is dispatched before it is given up and written as an empty batch
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+	/**
+	 * number of times each local worker can be respawned after dying
+	 */
+	private static final int MAX_RESPAWNS = 3;
+	/**
+	 * longest time in milliseconds a worker can stay silent, several heartbeat intervals
+	 */
+	private static final int WORKER_TIMEOUT = (int)(6 * ShardWorker.HEARTBEAT_INTERVAL);
+	/**
+	 * longest time in milliseconds a worker can take to send the next result of its shard
+	 */
+	private static final long SEED_TIMEOUT = 120000;
+
+	/**
+	 * A range of seeds of one game and level
+	 */
+	public static class Shard {
+		final int index;
+		final String gameFile;
+		final String levelFile;
+		final int seedStart;
+		final int seedEnd;
+		int attempts;
+
+		public Shard(int index, String gameFile, String levelFile, int seedStart, int seedEnd){
+			this.index = index;
+			this.gameFile = gameFile;
+			this.levelFile = levelFile;
+			this.seedStart = seedStart;
+			this.seedEnd = seedEnd;
+		}
+	}
+
+	/**
+	 * total number of shards
+	 */
+	private int shardCount;
+	/**
+	 * shards not owned by any worker yet
+	 */
+	private ArrayDeque<Shard> unassigned;
+	/**
+	 * the shard deques of the connected workers
+	 */
+	private ArrayList<ArrayDeque<Shard>> workerShards;
+	/**
+	 * number of workers the shards are spread over when a worker first asks for work
+	 */
+	private int expectedWorkers;
+
+	/**
+	 * number of shards written to the output
+	 */
+	private int finishedShards;
+	/**
+	 * the merged output stream
+	 */
+	private DataOutputStream output;
+
+	/**
+	 * Constructor that prepares the shards for the workers
+	 * @param shards			all shards, their index is their position
+	 * @param expectedWorkers	number of workers expected to connect
+	 * @param output			the stream the results are written to
+	 */
+	public ShardCoordinator(ArrayList<Shard> shards, int expectedWorkers, OutputStream output){
+		this.shardCount = shards.size();
+		this.unassigned = new ArrayDeque<Shard>(shards);
+		this.workerShards = new ArrayList<ArrayDeque<Shard>>();
+		this.expectedWorkers = Math.max(1, expectedWorkers);
+		this.finishedShards = 0;
+		this.output = new DataOutputStream(output);
+	}
+
+	/**
+	 * Split a job into shards
+	 * @param shards		the list the shards are added to
+	 * @param gameFile		the game description file
+	 * @param levelFile		the level file
+	 * @param seedStart		the first seed
+	 * @param seedEnd		the seed after the last one
+	 * @param shardSize		number of seeds in a shard
+	 */
+	public static void addJob(ArrayList<Shard> shards, String gameFile, String levelFile, int seedStart, int seedEnd, int shardSize){
+		for(int seed=seedStart; seed<seedEnd; seed+=shardSize){
+			shards.add(new Shard(shards.size(), gameFile, levelFile, seed, Math.min(seedEnd, seed + shardSize)));
+		}
+	}
+
+	/**
+	 * @return	true if the results of all shards have been written
+	 */
+	public synchronized boolean isFinished(){
+		return finishedShards == shardCount;
+	}
+
+	/**
+	 * @return	number of workers currently connected
+	 */
+	public synchronized int getConnectedWorkers(){
+		return workerShards.size();
+	}
+
+	/**
+	 * Wait until the results of all shards have been written
+	 * @param timeout	maximum time to wait in milliseconds
+	 * @return			true if all shards are finished
+	 * @throws InterruptedException	if the thread is interrupted while waiting
+	 */
+	public synchronized boolean awaitFinished(long timeout) throws InterruptedException {
+		if(!isFinished()){
+			wait(timeout);
+		}
+		return isFinished();
+	}
+
+	/**
+	 * Get the next shard for a worker, waiting while every remaining shard is being
+	 * processed by another worker in case one of them dies
+	 * @param own	the shard deque of the worker
+	 * @return		the next shard or null if there is no work left
+	 * @throws InterruptedException	if the thread is interrupted while waiting
+	 */
+	private synchronized Shard take(ArrayDeque<Shard> own) throws InterruptedException {
+		while(!isFinished()){
+			if(own.isEmpty() && !unassigned.isEmpty()){
+				int share = Math.max(1, unassigned.size() / expectedWorkers);
+				for(int i=0; i<share; i++){
+					own.addLast(unassigned.pollFirst());
+				}
+			}
+			if(own.isEmpty()){
+				ArrayDeque<Shard> victim = null;
+				for(int i=0; i<workerShards.size(); i++){
+					if(victim == null || workerShards.get(i).size() > victim.size()){
+						victim = workerShards.get(i);
+					}
+				}
+				// steal the half of the victim's shards it would process last
+				int share = victim == null ? 0 : victim.size() / 2;
+				for(int i=0; i<share; i++){
+					own.addFirst(victim.pollLast());
+				}
+			}
+			if(!own.isEmpty()){
+				return own.pollFirst();
+			}
+			wait();
+		}
+		return null;
+	}
+
+	/**
+	 * Write the results of a finished shard to the output
+	 * @param shard		the finished shard
+	 * @param frames	the encoded rule sets of the shard
+	 * @throws IOException	if the output can't be written
+	 */
+	private synchronized void complete(Shard shard, ArrayList<byte[]> frames) throws IOException {
+		output.writeInt(shard.index);
+		output.writeUTF(shard.gameFile);
+		output.writeUTF(shard.levelFile);
+		output.writeInt(shard.seedStart);
+		output.writeInt(shard.seedEnd);
+		ByteBuffer header = ByteBuffer.allocate(16);
+		RuleSetCodec.writeBatchHeader(header, frames.size());
+		output.write(header.array(), 0, header.position());
+		for(int i=0; i<frames.size(); i++){
+			output.write(frames.get(i));
+		}
+		output.flush();
+		finishedShards += 1;
+		notifyAll();
+	}
+
+	/**
+	 * Count a failed attempt of a shard and dispatch it again, or give it up and
+	 * write it as an empty batch once it failed too many times
+	 * @param shard		the failed shard
+	 * @param reason	why the shard failed
+	 * @throws IOException	if a given up shard can't be written
+	 */
+	private synchronized void retry(Shard shard, String reason) throws IOException {
+		shard.attempts += 1;
+		System.err.println("Shard " + shard.index + " (" + shard.gameFile + ", " + shard.levelFile + ", seeds " +
+				shard.seedStart + "-" + shard.seedEnd + ") failed attempt " + shard.attempts + ": " + reason);
+		if(shard.attempts < MAX_ATTEMPTS){
+			unassigned.addFirst(shard);
+		}
+		else{
+			System.err.println("Giving up shard " + shard.index);
+			complete(shard, new ArrayList<byte[]>());
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Give back the shards of a worker that died so other workers can process them
+	 * @param current	the shard the worker was processing or null
+	 * @param own		the shard deque of the worker
+	 * @param reason	why the worker was lost
+	 * @throws IOException	if a given up shard can't be written
+	 */
+	private synchronized void fail(Shard current, ArrayDeque<Shard> own, String reason) throws IOException {
+		while(!own.isEmpty()){
+			unassigned.addFirst(own.pollLast());
+		}
+		if(current != null){
+			retry(current, reason);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Serve one worker connection until the worker stops or dies
+	 * @param socket	the connection to the worker
+	 */
+	private void serve(Socket socket){
+		ArrayDeque<Shard> own = new ArrayDeque<Shard>();
+		synchronized(this){
+			workerShards.add(own);
+		}
+
+		Shard current = null;
+		// the time the current shard is given up on if no result arrives
+		long deadline = 0;
+		ArrayList<byte[]> frames = new ArrayList<byte[]>();
+		try {
+			socket.setSoTimeout(WORKER_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while(true){
+				byte message = in.readByte();
+				if(message == ShardWorker.MSG_REQUEST){
+					current = take(own);
+					if(current == null){
+						out.writeByte(ShardWorker.MSG_STOP);
+						out.flush();
+						break;
+					}
+					out.writeByte(ShardWorker.MSG_SHARD);
+					out.writeUTF(current.gameFile);
+					out.writeUTF(current.levelFile);
+					out.writeInt(current.seedStart);
+					out.writeInt(current.seedEnd);
+					out.flush();
+					deadline = System.currentTimeMillis() + SEED_TIMEOUT;
+				}
+				else if(message == ShardWorker.MSG_RESULT){
+					int length = in.readInt();
+					byte[] frame = new byte[length + 4];
+					ByteBuffer.wrap(frame).putInt(length);
+					in.readFully(frame, 4, length);
+					frames.add(frame);
+					deadline = System.currentTimeMillis() + SEED_TIMEOUT;
+				}
+				else if(message == ShardWorker.MSG_HEARTBEAT){
+					// the worker is alive, the deadline below tells if it is stuck
+				}
+				else if(message == ShardWorker.MSG_DONE){
+					complete(current, frames);
+					current = null;
+					frames = new ArrayList<byte[]>();
+				}
+				else if(message == ShardWorker.MSG_FAILED){
+					// the worker is still alive, only this shard failed
+					retry(current, in.readUTF());
+					current = null;
+					frames = new ArrayList<byte[]>();
+				}
+				else{
+					throw new IOException("Unknown message " + message);
+				}
+				if(current != null && System.currentTimeMillis() > deadline){
+					throw new IOException("no result for " + SEED_TIMEOUT + " ms");
+				}
+			}
+		} catch (Exception e) {
+			try {
+				fail(current, own, "lost worker " + socket.getRemoteSocketAddress() + ": " + e);
+			} catch (IOException e2) {
+				e2.printStackTrace();
+			}
+		} finally {
+			synchronized(this){
+				workerShards.remove(own);
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do, the worker is gone anyway
+			}
+		}
+	}
+
+	/**
+	 * Accept worker connections until all shards are finished
+	 * @param server	the socket the workers connect to
+	 */
+	public void accept(final ServerSocket server){
+		while(!isFinished()){
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				// the server socket is closed once all shards are finished
+				break;
+			}
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}, "ShardCoordinator-" + socket.getRemoteSocketAddress());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Start a worker process on this machine
+	 * @param port	the port of the coordinator
+	 * @return		the worker process
+	 * @throws IOException	if the process can't be started
+	 */
+	private static Process startWorker(int port) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				ShardWorker.class.getName(), "localhost", Integer.toString(port));
+		builder.inheritIO();
+		return builder.start();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 8 || (args.length - 4) % 4 != 0){
+			System.err.println("Usage: ShardCoordinator port outputFile localWorkers shardSize (gameFile levelFile seedStart seedEnd)+");
+			System.exit(1);
+		}
+		int port = Integer.parseInt(args[0]);
+		File outputFile = new File(args[1]);
+		int localWorkers = Integer.parseInt(args[2]);
+		int shardSize = Integer.parseInt(args[3]);
+		ArrayList<Shard> shards = new ArrayList<Shard>();
+		for(int i=4; i<args.length; i+=4){
+			addJob(shards, args[i], args[i + 1], Integer.parseInt(args[i + 2]), Integer.parseInt(args[i + 3]), shardSize);
+		}
+
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile));
+		final ServerSocket server = new ServerSocket(port);
+		final ShardCoordinator coordinator = new ShardCoordinator(shards, localWorkers, output);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				coordinator.accept(server);
+			}
+		}, "ShardCoordinator-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		ArrayList<Process> processes = new ArrayList<Process>();
+		for(int i=0; i<localWorkers; i++){
+			processes.add(startWorker(server.getLocalPort()));
+		}
+
+		try {
+			// respawns of each local worker, so one crashing worker can't use up the others'
+			int[] respawns = new int[localWorkers];
+			while(!coordinator.awaitFinished(1000)){
+				boolean alive = coordinator.getConnectedWorkers() > 0 || localWorkers == 0;
+				for(int i=0; i<processes.size(); i++){
+					if(!processes.get(i).isAlive() && respawns[i] < MAX_RESPAWNS && !coordinator.isFinished()){
+						System.err.println("Respawning local worker " + i);
+						processes.set(i, startWorker(server.getLocalPort()));
+						respawns[i] += 1;
+					}
+					alive = alive || processes.get(i).isAlive();
+				}
+				// without remote workers nobody is left to finish the shards once all local workers are dead
+				if(!alive){
+					throw new IllegalStateException("All workers died before the shards were finished");
+				}
+			}
+		} finally {
+			server.close();
+			output.close();
+			for(int i=0; i<processes.size(); i++){
+				// a hung worker never stops by itself
+				if(!processes.get(i).waitFor(WORKER_TIMEOUT, TimeUnit.MILLISECONDS)){
+					processes.get(i).destroyForcibly();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package tracks.ruleGeneration.brkdncr94;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import core.game.Game;
+import core.game.SLDescription;
+import core.vgdl.VGDLFactory;
+import core.vgdl.VGDLParser;
+import core.vgdl.VGDLRegistry;
+import tools.ElapsedCpuTimer;
+import tools.IO;
+
+/**
+ * A worker process of the sharded generation. It connects to a {@link ShardCoordinator},
+ * asks for (game, level, seed range) shards, runs the {@link RuleGenerator} once for every
+ * seed and sends each decoded result back as a {@link RuleSetCodec} frame, or a failure frame
+ * if the generation of that seed threw. A heartbeat is sent while the worker is connected
+ * so the coordinator can tell a busy worker from a lost one.
+ * Usage: ShardWorker host port
+ */
+
+public class ShardWorker {
+	/**
+	 * messages sent from the worker to the coordinator
+	 */
+	static final byte MSG_REQUEST = 1;
+	static final byte MSG_RESULT = 2;
+	static final byte MSG_DONE = 3;
+	static final byte MSG_FAILED = 4;
+	static final byte MSG_HEARTBEAT = 5;
+	/**
+	 * messages sent from the coordinator to the worker
+	 */
+	static final byte MSG_SHARD = 1;
+	static final byte MSG_STOP = 2;
+
+	/**
+	 * the amount of time allowed for the rule generator for each seed
+	 */
+	private static final long GENERATION_TIME = 10000;
+
+	/**
+	 * time between two heartbeats in milliseconds
+	 */
+	static final long HEARTBEAT_INTERVAL = 5000;
+
+	/**
+	 * longest failure message sent to the coordinator
+	 */
+	private static final int MAX_MESSAGE_LENGTH = 1000;
+
+	/**
+	 * buffer used to encode the frames, grown when a rule set doesn't fit
+	 */
+	private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+	/**
+	 * Get the message describing why a shard or a seed failed
+	 * @param e	the exception that made it fail
+	 * @return	the message, at most MAX_MESSAGE_LENGTH characters long
+	 */
+	private static String getMessage(Exception e){
+		String message = e.toString();
+		if(message.length() > MAX_MESSAGE_LENGTH){
+			message = message.substring(0, MAX_MESSAGE_LENGTH);
+		}
+		return message;
+	}
+
+	/**
+	 * Tell the coordinator that the current shard failed, so it can count the attempt
+	 * and give the shard to another worker while this one keeps working
+	 * @param out	the stream to the coordinator
+	 * @param e		the exception that made the shard fail
+	 * @throws IOException	if the coordinator can't be reached
+	 */
+	private void failShard(DataOutputStream out, Exception e) throws IOException {
+		synchronized(out){
+			out.writeByte(MSG_FAILED);
+			out.writeUTF(getMessage(e));
+			out.flush();
+		}
+	}
+
+	/**
+	 * Decode the sprite names of a sprite set structure. The group names are not sprites and
+	 * are kept, the sprites are decoded with the same SLDescription.modifyRules call used
+	 * for the rules, each one as a rule made of a single name.
+	 * @param sl			the description the rules were generated against
+	 * @param structure		the structure returned by the generator
+	 * @param seed			the seed the sprite names were obfuscated with
+	 * @return				the structure with decoded sprite names
+	 */
+	private static HashMap<String, ArrayList<String>> decodeStructure(SLDescription sl, HashMap<String, ArrayList<String>> structure, long seed){
+		ArrayList<String> names = new ArrayList<String>();
+		for(ArrayList<String> sprites : structure.values()){
+			names.addAll(sprites);
+		}
+		String[] decoded = sl.modifyRules(names.toArray(new String[names.size()]), new String[0], seed)[0];
+
+		HashMap<String, ArrayList<String>> result = new HashMap<String, ArrayList<String>>();
+		int index = 0;
+		for(Map.Entry<String, ArrayList<String>> entry : structure.entrySet()){
+			ArrayList<String> sprites = new ArrayList<String>();
+			for(int i=0; i<entry.getValue().size(); i++){
+				sprites.add(decoded[index]);
+				index += 1;
+			}
+			result.put(entry.getKey(), sprites);
+		}
+		return result;
+	}
+
+	/**
+	 * Generate the rules of every seed of a shard and send them to the coordinator.
+	 * A failure to load the game fails the shard, a seed whose generation throws is sent
+	 * as a failure frame and the shard goes on. Only losing the coordinator ends the worker.
+	 * @param out			the stream to the coordinator
+	 * @param gameFile		the game description file
+	 * @param levelFile		the level file
+	 * @param seedStart		the first seed of the shard
+	 * @param seedEnd		the seed after the last one of the shard
+	 * @throws IOException	if the coordinator can't be reached
+	 */
+	private void runShard(DataOutputStream out, String gameFile, String levelFile, int seedStart, int seedEnd) throws IOException {
+		Game game;
+		String[] lines;
+		try {
+			VGDLFactory.GetInstance().init();
+			VGDLRegistry.GetInstance().init();
+			game = new VGDLParser().parseGame(gameFile);
+			lines = new IO().readFile(levelFile);
+		} catch (Exception e) {
+			failShard(out, e);
+			return;
+		}
+
+		// the frames of a shard form one batch and share its dictionary
+		RuleSetCodec.Encoder encoder = new RuleSetCodec.Encoder();
+		for(int seed=seedStart; seed<seedEnd; seed++){
+			String[][] rules = null;
+			HashMap<String, ArrayList<String>> structure = null;
+			String failure = null;
+			try {
+				SLDescription sl = new SLDescription(game, lines, seed);
+				ElapsedCpuTimer timer = new ElapsedCpuTimer();
+				timer.setMaxTimeMillis(GENERATION_TIME);
+				RuleGenerator generator = new RuleGenerator(sl, timer, seed);
+				rules = generator.generateRules(sl, timer);
+				// the generator only sees sprite names obfuscated with the seed, decode them
+				// like the framework does before the rules are used
+				rules = sl.modifyRules(rules[0], rules[1], seed);
+				structure = decodeStructure(sl, generator.getSpriteSetStructure(), seed);
+			} catch (Exception e) {
+				failure = "seed " + seed + ": " + getMessage(e);
+			}
+
+			while(true){
+				try {
+					buffer.clear();
+					if(failure == null){
+						encoder.writeFrame(buffer, rules, structure);
+					}
+					else{
+						encoder.writeFailure(buffer, failure);
+					}
+					break;
+				} catch (BufferOverflowException e) {
+					buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+				}
+			}
+			synchronized(out){
+				out.writeByte(MSG_RESULT);
+				out.write(buffer.array(), 0, buffer.position());
+				// flushed so the coordinator sees the progress of the shard
+				out.flush();
+			}
+		}
+		synchronized(out){
+			out.writeByte(MSG_DONE);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Start sending heartbeats to the coordinator. If the coordinator can't be reached the
+	 * process is ended, the generation of a seed can't be interrupted and the coordinator
+	 * has already given the shard to another worker.
+	 * @param out	the stream to the coordinator
+	 * @return		the heartbeat thread
+	 */
+	private Thread startHeartbeat(final DataOutputStream out){
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(true){
+						Thread.sleep(HEARTBEAT_INTERVAL);
+						synchronized(out){
+							out.writeByte(MSG_HEARTBEAT);
+							out.flush();
+						}
+					}
+				} catch (InterruptedException e) {
+					// the worker is done
+				} catch (IOException e) {
+					// an interrupted heartbeat only failed because the worker closed the connection
+					if(!Thread.interrupted()){
+						System.err.println("Lost the coordinator: " + e);
+						System.exit(1);
+					}
+				}
+			}
+		}, "ShardWorker-heartbeat");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Keep asking the coordinator for shards until it has no work left
+	 * @param host			the host of the coordinator
+	 * @param port			the port of the coordinator
+	 * @throws IOException	if the connection is lost
+	 */
+	public void run(String host, int port) throws IOException {
+		Socket socket = new Socket(host, port);
+		Thread heartbeat = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			heartbeat = startHeartbeat(out);
+			while(true){
+				synchronized(out){
+					out.writeByte(MSG_REQUEST);
+					out.flush();
+				}
+				byte message = in.readByte();
+				if(message == MSG_STOP){
+					break;
+				}
+				if(message != MSG_SHARD){
+					throw new IOException("Unknown message " + message);
+				}
+				String gameFile = in.readUTF();
+				String levelFile = in.readUTF();
+				int seedStart = in.readInt();
+				int seedEnd = in.readInt();
+				runShard(out, gameFile, levelFile, seedStart, seedEnd);
+			}
+		} finally {
+			if(heartbeat != null){
+				heartbeat.interrupt();
+			}
+			socket.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length != 2){
+			System.err.println("Usage: ShardWorker host port");
+			System.exit(1);
+		}
+		new ShardWorker().run(args[0], Integer.parseInt(args[1]));
+	}
+}